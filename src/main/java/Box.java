@@ -1,15 +1,16 @@
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 import javax.xml.namespace.QName;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
+import cz.vutbr.web.css.CSSProperty.Display;
+
 public class Box implements Iterable<Box> {
 
 	public enum Rendering {
@@ -25,7 +26,7 @@ public class Box implements Iterable<Box> {
 	}
 
 	private static final String HTML_NS = "http://www.w3.org/1999/xhtml";
-	private static final QName IMG = new QName(HTML_NS, "img");
+	private static final QName IMG = QNamePool.get(HTML_NS, "img");
 
 	private final QName name;
 	private final Map<QName,String> attributes;
@@ -35,21 +36,16 @@ public class Box implements Iterable<Box> {
 	protected final boolean replacedElement;
 	final Rendering rendering;
 
-	// parent is the original parent box in the original box tree
-	// it is only used for determining the box properties
-	// it is not used for navigating to the parent box in the current tree (which may be different
-	// than the original)
 	// children is a function that is only called once, with this object as argument
 	private Box(QName name,
 	            Map<QName,String> attributes,
-	            Box parent,
 	            Function<Box,Supplier<Box>> children,
 	            String text,
-	            Style style,
+	            BoxPropertiesImpl props,
 	            Rendering rendering) {
 		this.name = name;
-		this.attributes = attributes != null ? attributes : Collections.<QName,String>emptyMap();
-		this.props = new BoxPropertiesImpl(style, parent != null ? parent.props : null);
+		this.attributes = copyOf(attributes);
+		this.props = props;
 		this.children = children != null
 			? MemoizingIterator.iterable(children.apply(this))
 			: noChildren;
@@ -58,6 +54,34 @@ public class Box implements Iterable<Box> {
 		this.rendering = rendering != null ? rendering : Rendering.DEFAULT;
 	}
 
+	// copies the attributes into an immutable map, which can not contain null names or values
+	private static Map<QName,String> copyOf(Map<QName,String> attributes) {
+		if (attributes == null)
+			return ImmutableMap.of();
+		if (!(attributes instanceof ImmutableMap))
+			for (Map.Entry<QName,String> a : attributes.entrySet())
+				if (a.getKey() == null)
+					throw new IllegalArgumentException("attribute without name");
+				else if (a.getValue() == null)
+					throw new IllegalArgumentException("attribute without value: " + a.getKey());
+		return ImmutableMap.copyOf(attributes);
+	}
+
+	// create box with a list of children that is not computed by the box itself (used by FlatBoxTree)
+	private Box(QName name,
+	            Map<QName,String> attributes,
+	            ListIterable<Box> children,
+	            String text,
+	            BoxPropertiesImpl props) {
+		this.name = name;
+		this.attributes = copyOf(attributes);
+		this.props = props;
+		this.children = children != null ? children : noChildren;
+		this.text = text;
+		this.replacedElement = IMG.equals(name);
+		this.rendering = Rendering.DEFAULT;
+	}
+
 	// create copy of box but with different element name and attributes to be used for rendering it
 	// box properties and structure are not changed
 	private Box(Box box, QName newName, Map<QName,String> attributes) {
@@ -66,8 +90,8 @@ public class Box implements Iterable<Box> {
 		this.text = box.text;
 		this.replacedElement = box.replacedElement;
 		this.rendering = box.rendering;
-		this.name = newName;
-		this.attributes = attributes != null ? attributes : Collections.<QName,String>emptyMap();
+		this.name = newName != null ? QNamePool.intern(newName) : null;
+		this.attributes = copyOf(attributes);
 	}
 
 	// create copy of box but with different children
@@ -123,10 +147,21 @@ public class Box implements Iterable<Box> {
 		return (this instanceof BlockBox) ? new BlockBox(this, newRendering) : new InlineBox(this, newRendering);
 	}
 
+	// parent is the original parent box in the original box tree
+	// it is only used for determining the box properties
+	// it is not used for navigating to the parent box in the current tree (which may be different
+	// than the original)
+	// boxes of elements with the same style and the same parent share their properties
+	private static BoxPropertiesImpl elementProps(Element element, Box parent) {
+		return parent != null
+			? parent.props.child(element.style())
+			: new BoxPropertiesImpl(element.style(), null);
+	}
+
 	public static class BlockBox extends Box {
 
 		BlockBox(Element element, BlockBox parent, Function<Box,Supplier<Box>> children) {
-			super(element.getName(), element.getAttributes(), parent, children, null, element.style, null);
+			super(element.getName(), element.getAttributes(), children, null, elementProps(element, parent), null);
 		}
 
 		private BlockBox(Box box, QName newName, Map<QName,String> attributes) {
@@ -141,8 +176,12 @@ public class Box implements Iterable<Box> {
 			super(box, newRendering);
 		}
 
+		private BlockBox(QName name, Map<QName,String> attributes, ListIterable<Box> children, BoxPropertiesImpl props) {
+			super(name, attributes, children, null, props);
+		}
+
 		private BlockBox(BlockBox parent, Function<Box,Supplier<Box>> children) {
-			super(null, null, parent, children, null, new Style(Style.BLOCK, parent.props), null);
+			super(null, null, children, null, parent.props.anonymousBlockChild(), null);
 		}
 	}
 
@@ -151,16 +190,20 @@ public class Box implements Iterable<Box> {
 		AnonymousBlockBox(BlockBox parent, Function<Box,Supplier<Box>> children) {
 			super(parent, children);
 		}
+
+		private AnonymousBlockBox(ListIterable<Box> children, BoxPropertiesImpl props) {
+			super(null, null, children, props);
+		}
 	}
 
 	public static class InlineBox extends Box {
 
 		InlineBox(Element element, Box parent, Function<Box,Supplier<Box>> children) {
-			super(element.getName(), element.getAttributes(), parent, children, null, element.style, null);
+			super(element.getName(), element.getAttributes(), children, null, elementProps(element, parent), null);
 		}
 
 		InlineBox(Element element, Box parent, String text) {
-			super(element.getName(), element.getAttributes(), parent, null, text, element.style, null);
+			super(element.getName(), element.getAttributes(), null, text, elementProps(element, parent), null);
 		}
 
 		private InlineBox(Box box, QName newName, Map<QName,String> attributes) {
@@ -175,12 +218,20 @@ public class Box implements Iterable<Box> {
 			super(box, newRendering);
 		}
 
+		private InlineBox(QName name,
+		                  Map<QName,String> attributes,
+		                  ListIterable<Box> children,
+		                  String text,
+		                  BoxPropertiesImpl props) {
+			super(name, attributes, children, text, props);
+		}
+
 		private InlineBox(Box parent, String text) {
-			super(null, null, parent, null, text, new Style(Style.INLINE, parent.props), null);
+			super(null, null, null, text, parent.props.anonymousInlineChild(), null);
 		}
 
 		private InlineBox(Box parent, Function<Box,Supplier<Box>> children) {
-			super(null, null, parent, children, null, new Style(Style.INLINE, parent.props), null);
+			super(null, null, children, null, parent.props.anonymousInlineChild(), null);
 		}
 
 		public String text() {
@@ -197,12 +248,49 @@ public class Box implements Iterable<Box> {
 		AnonymousInlineBox(Box parent, Function<Box,Supplier<Box>> children) {
 			super(parent, children);
 		}
+
+		private AnonymousInlineBox(ListIterable<Box> children, String text, BoxPropertiesImpl props) {
+			super(null, null, children, text, props);
+		}
+	}
+
+	// box types, as stored in FlatBoxTree
+	static final byte BLOCK = 0;
+	static final byte ANONYMOUS_BLOCK = 1;
+	static final byte INLINE = 2;
+	static final byte ANONYMOUS_INLINE = 3;
+
+	// create a box of the given type from its parts (used by FlatBoxTree)
+	// children may be null
+	static Box create(byte type,
+	                  QName name,
+	                  Map<QName,String> attributes,
+	                  ListIterable<Box> children,
+	                  String text,
+	                  BoxPropertiesImpl props) {
+		switch (type) {
+		case BLOCK:
+			return new BlockBox(name, attributes, children, props);
+		case ANONYMOUS_BLOCK:
+			return new AnonymousBlockBox(children, props);
+		case INLINE:
+			return new InlineBox(name, attributes, children, text, props);
+		case ANONYMOUS_INLINE:
+			return new AnonymousInlineBox(children, text, props);
+		default:
+			throw new IllegalArgumentException();
+		}
 	}
 
 	public ListIterator<Box> children() {
 		return children.iterator();
 	}
 
+	// returns null if there is no child at index
+	Box child(int index) {
+		return children.get(index);
+	}
+
 	public Iterator<Box> iterator() {
 		return children();
 	}
@@ -211,30 +299,41 @@ public class Box implements Iterable<Box> {
 		return props;
 	}
 
+	// same as props().display() but without string comparisons
+	Display display() {
+		return props.displayProp();
+	}
+
+	// The following caches may be computed concurrently by multiple threads. This is harmless
+	// because the computation always gives the same result and Boolean objects are immutable. The
+	// field is read only once so that a concurrent write can not make the method return null.
+
 	private Boolean isBlockAndHasNoBlockChildren = null;
 	public boolean isBlockAndHasNoBlockChildren() {
-		if (isBlockAndHasNoBlockChildren == null) {
+		Boolean b = isBlockAndHasNoBlockChildren;
+		if (b == null) {
 			if (this instanceof InlineBox)
-				isBlockAndHasNoBlockChildren = false;
-			else
-				try {
-					isBlockAndHasNoBlockChildren = children().next() instanceof InlineBox;
-				} catch (NoSuchElementException e) {
-					isBlockAndHasNoBlockChildren = true;
-				}
+				b = false;
+			else {
+				ListIterator<Box> children = children();
+				b = !children.hasNext() || children.next() instanceof InlineBox;
+			}
+			isBlockAndHasNoBlockChildren = b;
 		}
-		return isBlockAndHasNoBlockChildren;
+		return b;
 	}
 
 	private Boolean hasText = null;
 	public boolean hasText() {
-		if (hasText == null) {
+		Boolean b = hasText;
+		if (b == null) {
 			if (this instanceof InlineBox)
-				hasText = ((InlineBox)this).text() != null;
+				b = ((InlineBox)this).text() != null;
 			else
-				hasText = false;
+				b = false;
+			hasText = b;
 		}
-		return hasText;
+		return b;
 	}
 
 	public boolean isReplacedElement() {
@@ -259,8 +358,8 @@ public class Box implements Iterable<Box> {
 	}
 
 	private static final Set<QName> unnecessaryAttributes = ImmutableSet.of(
-		new QName("style"),
-		new QName("class"));
+		QNamePool.get("style"),
+		QNamePool.get("class"));
 
 	public boolean hasNecessaryAttributes() {
 		for (QName a : attributes.keySet())
@@ -283,9 +382,9 @@ public class Box implements Iterable<Box> {
 
 	static final ListIterable<Box> noChildren; static {
 		ListIterator<Box> empty
-			= new MemoizingIterator<Box>(Collections.emptyList()) {
+			= new MemoizingIterator<Box>(new MemoizingIterator.Memo<>()) {
 					public Box computeNext() {
-						throw new NoSuchElementException(); }};
+						return null; }};
 		noChildren = () -> empty;
 	}
 }
@@ -1,5 +1,7 @@
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import cz.vutbr.web.css.CSSProperty;
 import cz.vutbr.web.css.CSSProperty.BackgroundColor;
@@ -14,6 +16,10 @@ import cz.vutbr.web.css.TermLengthOrPercent;
  */
 public class BoxPropertiesImpl extends Style implements BoxProperties {
 
+	private final static int DISPLAY = Style.id("display");
+	private final static int BACKGROUND_COLOR = Style.id("background-color");
+	private final static int VISIBILITY = Style.id("visibility");
+
 	private final BoxPropertiesImpl parentBox;
 
 	BoxPropertiesImpl(Style cascaded, BoxPropertiesImpl parentBox) {
@@ -21,6 +27,39 @@ public class BoxPropertiesImpl extends Style implements BoxProperties {
 		this.parentBox = parentBox;
 	}
 
+	// box properties that have this object as parent, by style
+	private Map<Style,BoxPropertiesImpl> children = null;
+
+	// returns box properties for the given style with this object as parent
+	// boxes with the same parent and the same style share the same object
+	synchronized BoxPropertiesImpl child(Style style) {
+		if (children == null)
+			children = new IdentityHashMap<>();
+		BoxPropertiesImpl child = children.get(style);
+		if (child == null) {
+			child = new BoxPropertiesImpl(style, this);
+			children.put(style, child);
+		}
+		return child;
+	}
+
+	// properties of anonymous block and inline boxes that have this object as parent, created on
+	// first use and shared by all of them
+	private BoxPropertiesImpl anonymousBlockChild = null;
+	private BoxPropertiesImpl anonymousInlineChild = null;
+
+	synchronized BoxPropertiesImpl anonymousBlockChild() {
+		if (anonymousBlockChild == null)
+			anonymousBlockChild = new BoxPropertiesImpl(Style.anonymousBlock(this), this);
+		return anonymousBlockChild;
+	}
+
+	synchronized BoxPropertiesImpl anonymousInlineChild() {
+		if (anonymousInlineChild == null)
+			anonymousInlineChild = new BoxPropertiesImpl(Style.anonymousInline(this), this);
+		return anonymousInlineChild;
+	}
+
 	public Object get(String prop) {
 		if ("display".equals(prop))
 			return display();
@@ -32,81 +71,127 @@ public class BoxPropertiesImpl extends Style implements BoxProperties {
 			throw new IllegalArgumentException();
 	}
 
+	// The used values below are computed at most once per object and then shared with all boxes
+	// that use this object. Values that are taken from the parent are the parent's objects. The
+	// fields are not volatile: the values are immutable, so a thread that sees null or the
+	// sentinel simply computes the same value again.
+
 	private Display displayProp = null;
-	private Display displayProp() {
-		if (displayProp == null) {
+	Display displayProp() {
+		Display d = displayProp;
+		if (d == null) {
 			if (parentBox != null && parentBox.displayProp() == Display.NONE)
-				displayProp = Display.NONE;
+				d = Display.NONE;
 			else
-				displayProp = getSpecifiedProperty("display", Display.class).prop;
+				d = getSpecifiedProperty(DISPLAY, Display.class).prop;
+			displayProp = d;
 		}
-		return displayProp;
+		return d;
 	}
 
 	public String display() {
 		return displayProp().toString();
 	}
+
+	// stands for a background color of null (no background)
+	private final static String NO_BACKGROUND_COLOR = new String("transparent");
+
 	private String backgroundColor = null;
 	public String backgroundColor() {
-		if (backgroundColor == null) {
-			Property<BackgroundColor> p = getSpecifiedProperty("background-color", BackgroundColor.class);
+		String c = backgroundColor;
+		if (c == null) {
+			Property<BackgroundColor> p = getSpecifiedProperty(BACKGROUND_COLOR, BackgroundColor.class);
 			switch (p.prop) {
 			case color:
-				return ((TermColor)p.val).toString();
+				c = ((TermColor)p.val).toString();
+				break;
 			case TRANSPARENT:
-				if (parentBox != null)
-					return parentBox.backgroundColor();
-				return null;
+				c = parentBox != null ? parentBox.backgroundColor() : null;
+				if (c == null)
+					c = NO_BACKGROUND_COLOR;
+				break;
 			default:
 				throw new RuntimeException("coding error");
 			}
+			backgroundColor = c;
 		}
-		return backgroundColor;
+		return c == NO_BACKGROUND_COLOR ? null : c;
 	}
 
 	private String visibility = null;
 	public String visibility() {
-		if (visibility == null) {
-			Property<Visibility> p = getSpecifiedProperty("visibility", Visibility.class);
+		String v = visibility;
+		if (v == null) {
+			Property<Visibility> p = getSpecifiedProperty(VISIBILITY, Visibility.class);
 			switch (p.prop) {
 			case COLLAPSE:
 			case HIDDEN:
-				return "hidden";
+				v = "hidden";
+				break;
 			case VISIBLE:
-				return "visible";
+				v = "visible";
+				break;
 			default:
 				throw new RuntimeException("coding error");
 			}
+			visibility = v;
+		}
+		return v;
+	}
+
+	// result of the last call to relativize()
+	private Relativized relativized = null;
+
+	private static class Relativized {
+		final BoxPropertiesImpl base;
+		final Style style;
+		Relativized(BoxPropertiesImpl base, Style style) {
+			this.base = base;
+			this.style = style;
 		}
-		return visibility;
 	}
 
 	public Style relativize(BoxPropertiesImpl base) {
 		if (parentBox == base)
 			return this;
-		else {
-			Style ifEmpty = new Style((Iterable<Style.Property<CSSProperty>>)null, base);
-			List<Style.Property<CSSProperty>> relative = new ArrayList<>();
-			for (String p : Style.supportedCss.getDefinedPropertyNames()) {
-				Style.Property<CSSProperty> a = getProperty(p, true, false); // don't concretize initial
-				Style.Property<CSSProperty> b = ifEmpty.getProperty(p, true, false);
-				// special handling of initial because the defaults may be inconsistent across browsers
-				if (a.prop.equalsInitial()) {
-					if (b.prop.equalsInitial())
-						;
-					else
-						relative.add(getSpecifiedProperty(p));
-				} else if (b.prop.equalsInitial())
-					relative.add(a);
-				else if (a.prop instanceof Margin
-				         && a.val != null && ((TermLengthOrPercent)a.val).getValue() == 0f
-				         && b.val != null && ((TermLengthOrPercent)b.val).getValue() == 0f)
-					// unit doesn't matter if it's 0
-					continue;
-				else if (!a.equals(b))
-					relative.add(a);
-			}
-			return new Style(relative, base);
-		}
+		Relativized r = relativized;
+		if (r != null && r.base == base)
+			return r.style;
+		Style style = relativize(this, base);
+		relativized = new Relativized(base, style);
+		return style;
+	}
+
+	private static Style relativize(Style style, BoxPropertiesImpl base) {
+		Style ifEmpty = new Style((Iterable<Style.Property<CSSProperty>>)null, base);
+		List<Style.Property<CSSProperty>> relative = new ArrayList<>();
+		// a property that is not cascaded anywhere in the inheritance chain of either style resolves
+		// to the same dummy property for both, so only the other properties need to be compared
+		long[] a = style.cascadedIdsInChain();
+		long[] b = ifEmpty.cascadedIdsInChain(); // the ids of base, or none if base is null
+		for (int w = 0; w < a.length; w++)
+			for (long bits = a[w] | b[w]; bits != 0; bits &= bits - 1)
+				relativize(style, ifEmpty, w * 64 + Long.numberOfTrailingZeros(bits), relative);
+		return new Style(relative, base);
+	}
+
+	private static void relativize(Style style, Style ifEmpty, int p, List<Style.Property<CSSProperty>> relative) {
+		Style.Property<CSSProperty> a = style.getProperty(p, true, false); // don't concretize initial
+		Style.Property<CSSProperty> b = ifEmpty.getProperty(p, true, false);
+		// special handling of initial because the defaults may be inconsistent across browsers
+		if (a.prop.equalsInitial()) {
+			if (b.prop.equalsInitial())
+				;
+			else
+				relative.add(style.getSpecifiedProperty(p));
+		} else if (b.prop.equalsInitial())
+			relative.add(a);
+		else if (a.prop instanceof Margin
+		         && a.val != null && ((TermLengthOrPercent)a.val).getValue() == 0f
+		         && b.val != null && ((TermLengthOrPercent)b.val).getValue() == 0f)
+			// unit doesn't matter if it's 0
+			return;
+		else if (!a.equals(b))
+			relative.add(a);
 	}
 }
@@ -1,12 +1,11 @@
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Stack;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
@@ -15,14 +14,21 @@ import javax.xml.namespace.QName;
 class BoxTreeWalker implements Cloneable {
 
 	protected Box root;
-	private Stack<ListIterator<Box>> path;
+	// The path from the root to the current box: ancestors[d] is the ancestor at depth d and
+	// indexes[d] the index of the next box on the path among its children. Children are accessed
+	// by index, so moving around is constant time, and updating the path is linear in its depth.
+	private Box[] ancestors;
+	private int[] indexes;
+	private int depth;
 	private Box current;
 
 	private final static Optional<Box> noSuchElement = Optional.<Box>empty();
 
 	public BoxTreeWalker(Box root) {
 		this.root = root;
-		path = new Stack<>();
+		ancestors = new Box[16];
+		indexes = new int[16];
+		depth = 0;
 		current = root;
 	}
 
@@ -47,63 +53,67 @@ class BoxTreeWalker implements Cloneable {
 	}
 
 	public Box root() {
-		while (parent().isPresent());
+		depth = 0;
+		current = root;
 		return current;
 	}
 
 	public Optional<Box> previousSibling() {
-		if (path.empty())
+		if (depth == 0)
 			return noSuchElement;
-		ListIterator<Box> siblings = path.peek();
-		siblings.previous();
-		if (!siblings.hasPrevious()) {
-			siblings.next();
+		int i = indexes[depth - 1];
+		if (i == 0)
 			return noSuchElement;
-		}
-		current = siblings.previous();
-		siblings.next();
+		current = ancestors[depth - 1].child(i - 1);
+		indexes[depth - 1] = i - 1;
 		return Optional.of(current);
 	}
 
 	public Optional<Box> nextSibling() {
-		if (path.empty())
+		if (depth == 0)
 			return noSuchElement;
-		ListIterator<Box> siblings = path.peek();
-		if (!siblings.hasNext())
+		int i = indexes[depth - 1];
+		Box next = ancestors[depth - 1].child(i + 1);
+		if (next == null)
 			return noSuchElement;
-		current = siblings.next();
+		current = next;
+		indexes[depth - 1] = i + 1;
 		return Optional.of(current);
 	}
 
 	public Optional<Box> parent() {
-		if (path.empty())
+		if (depth == 0)
 			return noSuchElement;
-		path.pop();
-		if (path.empty())
-			current = root;
-		else {
-			ListIterator<Box> peek = path.peek();
-			current = peek.previous();
-			peek.next();
-		}
+		current = ancestors[--depth];
 		return Optional.of(current);
 	}
 
 	public Optional<Box> firstChild() {
-		ListIterator<Box> children = current.children();
-		if (!children.hasNext())
+		return child(0);
+	}
+
+	private Optional<Box> child(int index) {
+		Box child = current.child(index);
+		if (child == null)
 			return noSuchElement;
-		current = children.next();
-		path.push(children);
+		if (depth == ancestors.length) {
+			ancestors = Arrays.copyOf(ancestors, 2 * depth);
+			indexes = Arrays.copyOf(indexes, 2 * depth);
+		}
+		ancestors[depth] = current;
+		indexes[depth] = index;
+		depth++;
+		current = child;
 		return Optional.of(current);
 	}
 
 	public Optional<Box> firstFollowing() {
-		for (int i = path.size() - 1; i >= 0 ; i--) {
-			ListIterator<Box> siblings = path.get(i);
-			if (siblings.hasNext()) {
-				current = siblings.next();
-				path.setSize(i + 1);
+		for (int d = depth - 1; d >= 0; d--) {
+			Box next = ancestors[d].child(indexes[d] + 1);
+			if (next != null) {
+				indexes[d]++;
+				depth = d + 1;
+				current = next;
 				return Optional.of(current);
 			}
 		}
@@ -111,42 +121,31 @@ class BoxTreeWalker implements Cloneable {
 	}
 
 	public Optional<Box> firstPreceding() {
-		for (int i = path.size() - 1; i >= 0 ; i--) {
-			ListIterator<Box> siblings = path.get(i);
-			siblings.previous();
-			if (siblings.hasPrevious()) {
-				current = siblings.previous();
-				siblings.next();
-				path.setSize(i + 1);
-				while (true) {
-					ListIterator<Box> children = current.children();
-					if (children.hasNext()) {
-						while (children.hasNext()) {
-							current = children.next();
-							path.push(children);
-						}
-					} else
-						break;
-				}
+		for (int d = depth - 1; d >= 0; d--) {
+			if (indexes[d] > 0) {
+				indexes[d]--;
+				depth = d + 1;
+				current = ancestors[d].child(indexes[d]);
+				// descend to the last descendant
+				while (firstChild().isPresent())
+					while (nextSibling().isPresent());
 				return Optional.of(current);
-			} else
-				siblings.next();
+			}
 		}
 		return noSuchElement;
 	}
 
 	public Optional<Box> firstParent(Predicate<Box> filter) {
-		for (int i = path.size() - 2; i >= 0 ; i--) {
-			Box parent = path.get(i).previous();
-			path.get(i).next();
+		for (int d = depth - 1; d > 0; d--) {
+			Box parent = ancestors[d];
 			if (filter.test(parent)) {
-				path.setSize(i + 1);
+				depth = d;
 				current = parent;
 				return Optional.of(current);
 			}
 		}
 		if (filter.test(root)) {
-			path.setSize(0);
+			depth = 0;
 			current = root;
 			return Optional.of(current);
 		}
@@ -154,16 +153,16 @@ class BoxTreeWalker implements Cloneable {
 	}
 
 	public Optional<Box> firstDescendant(Predicate<Box> filter) {
-		int startDepth = path.size();
+		int startDepth = depth;
 		while (true) {
 			Optional<Box> next;
 			if (!(next = firstChild()).isPresent())
-				if (path.size() == startDepth)
+				if (depth == startDepth)
 					return noSuchElement;
 				else if (!(next = nextSibling()).isPresent())
 					while (true)
 						if ((next = parent()).isPresent()) {
-							if (path.size() == startDepth)
+							if (depth == startDepth)
 								return noSuchElement;
 							if ((next = nextSibling()).isPresent())
 								break;
@@ -179,8 +178,7 @@ class BoxTreeWalker implements Cloneable {
 	}
 
 	public Optional<Box> firstFollowing(Predicate<Box> filter) {
-		Stack<ListIterator<Box>> savePath = deepCopy(path);
-		Box saveCurrent = current;
+		BoxTreeWalker save = clone();
 		while (true) {
 			Optional<Box> next;
 			if ((next = firstFollowing()).isPresent()) {
@@ -189,14 +187,12 @@ class BoxTreeWalker implements Cloneable {
 			} else
 				break;
 		}
-		path = savePath;
-		current = saveCurrent;
+		restore(save);
 		return noSuchElement;
 	}
 
 	public Optional<Box> firstPreceding(Predicate<Box> filter) {
-		Stack<ListIterator<Box>> savePath = deepCopy(path);
-		Box saveCurrent = current;
+		BoxTreeWalker save = clone();
 		Optional<Box> previous;
 		if ((previous = firstPreceding()).isPresent()) {
 			if (filter.test(previous.get()))
@@ -225,8 +221,7 @@ class BoxTreeWalker implements Cloneable {
 						return previous;
 				}
 		}
-		path = savePath;
-		current = saveCurrent;
+		restore(save);
 		return noSuchElement;
 	}
 
@@ -263,7 +258,7 @@ class BoxTreeWalker implements Cloneable {
 		if (!children.hasNext())
 			throw new RuntimeException("there is no first child");
 		children.next();
-		Supplier<Box> newChildren = children::next;
+		Supplier<Box> newChildren = MemoizingIterator.supplier(children);
 		updateCurrent(current.copy(newChildren));
 		return current;
 	}
@@ -284,40 +279,34 @@ class BoxTreeWalker implements Cloneable {
 
 	// returns current box (with different next sibling)
 	public Box unwrapNextSibling() {
-		if (path.empty())
+		if (depth == 0)
 			throw new RuntimeException("there is no next sibling");
-		ListIterator<Box> siblings = path.peek();
-		if (!siblings.hasNext())
+		int i = indexes[depth - 1];
+		Box nextSibling = ancestors[depth - 1].child(i + 1);
+		if (nextSibling == null)
 			throw new RuntimeException("there is no next sibling");
 		Box parent = parent().get();
-		Box nextSibling = siblings.next();
-		int i = rewind(siblings);
 		Supplier<Box> newSiblings = nextSibling.hasText()
-			? updateIn(siblings, i - 1, nextSibling.copy((QName)null, null))
-			: updateIn(siblings, i - 1, nextSibling.children());
+			? updateIn(parent.children(), i + 1, nextSibling.copy((QName)null, null))
+			: updateIn(parent.children(), i + 1, nextSibling.children());
 		updateCurrent(parent.copy(newSiblings));
-		firstChild();
-		while (i-- > 2) nextSibling();
+		child(i);
 		return current;
 	}
 
 	// returns current box (with different parent and siblings)
 	public Box unwrapParent() {
-		if (path.empty())
+		if (depth == 0)
 			throw new RuntimeException("there is no parent");
-		if (path.size() == 1)
+		if (depth == 1)
 			throw new RuntimeException("root can not be unwrapped");
-		ListIterator<Box> siblings = path.peek();
-		parent();
-		ListIterator<Box> parentSiblings = path.peek();
-		int i = rewind(siblings);
-		int j = rewind(parentSiblings);
-		Supplier<Box> newSiblings = updateIn(parentSiblings, j - 1, siblings);
+		int i = indexes[depth - 1];
+		int j = indexes[depth - 2];
+		Box parent = parent().get();
 		Box newParent = parent().get();
+		Supplier<Box> newSiblings = updateIn(newParent.children(), j, parent.children());
 		updateCurrent(newParent.copy(newSiblings));
-		firstChild();
-		while (i-- > 1) nextSibling();
-		while (j-- > 1) nextSibling();
+		child(j + i);
 		return current;
 	}
 
@@ -331,8 +320,8 @@ class BoxTreeWalker implements Cloneable {
 	public Box wrapCurrent(QName wrapper, Map<QName,String> attributes) {
 		Box parent = clone().parent().orElse(null);
 		Box newBox = current instanceof Box.BlockBox
-			? new Box.AnonymousBlockBox((Box.BlockBox)parent, _b -> Collections.singleton(current).iterator()::next)
-			: new Box.InlineBox(null, parent, _b -> Collections.singleton(current).iterator()::next);
+			? new Box.AnonymousBlockBox((Box.BlockBox)parent, _b -> MemoizingIterator.supplier(Collections.singleton(current).iterator()))
+			: new Box.AnonymousInlineBox(parent, _b -> MemoizingIterator.supplier(Collections.singleton(current).iterator()));
 		if (wrapper != null || attributes != null)
 			newBox = newBox.copy(wrapper, attributes);
 		updateCurrent(newBox);
@@ -360,21 +349,15 @@ class BoxTreeWalker implements Cloneable {
 
 	public Box wrapFirstChildren(int childrenCount, QName wrapper, Map<QName,String> attributes) {
 		Box parent = current;
-		ListIterator<Box> children;
+		ListIterator<Box> children = parent.children();
 		List<Box> childrenToWrap = new ArrayList<>();
 		if (childrenCount < 0) {
-			if (firstChild().isPresent()) {
-				children = path.peek();
-				childrenToWrap.add(current);
-				while (children.hasNext())
-					childrenToWrap.add(children.next());
-			} else
-				children = Box.noChildren.iterator();
+			while (children.hasNext())
+				childrenToWrap.add(children.next());
 		} else {
-			if (!firstChild().isPresent())
+			if (!children.hasNext())
 				throw new RuntimeException("there are no children");
-			children = path.peek();
-			childrenToWrap.add(current);
+			childrenToWrap.add(children.next());
 			for (int i = 1; i < childrenCount; i++)
 				if (!children.hasNext())
 					throw new RuntimeException("there are no " + childrenCount + " children");
@@ -382,13 +365,11 @@ class BoxTreeWalker implements Cloneable {
 					childrenToWrap.add(children.next());
 		}
 		Box newBox = childrenToWrap.get(0) instanceof Box.BlockBox
-			? new Box.AnonymousBlockBox((Box.BlockBox)parent, _b -> childrenToWrap.iterator()::next)
-			: new Box.InlineBox(null, parent, _b -> childrenToWrap.iterator()::next);
+			? new Box.AnonymousBlockBox((Box.BlockBox)parent, _b -> MemoizingIterator.supplier(childrenToWrap.iterator()))
+			: new Box.AnonymousInlineBox(parent, _b -> MemoizingIterator.supplier(childrenToWrap.iterator()));
 		if (wrapper != null || attributes != null)
 			newBox = newBox.copy(wrapper, attributes);
-		rewind(children);
-		parent();
-		updateCurrent(current.copy(updateIn(children, 0, childrenToWrap.size(), newBox)));
+		updateCurrent(current.copy(updateIn(parent.children(), 0, childrenToWrap.size(), newBox)));
 		return current;
 	}
 
@@ -400,46 +381,36 @@ class BoxTreeWalker implements Cloneable {
 	}
 
 	public Box wrapNextSiblings(int siblingCount, QName wrapper, Map<QName,String> attributes) {
-		if (path.empty())
+		if (depth == 0)
 			throw new RuntimeException("there are no next siblings");
-		ListIterator<Box> siblings = path.peek();
-		Box parent = parent().get();
+		int index = indexes[depth - 1];
+		Box parent = ancestors[depth - 1];
 		List<Box> siblingsToWrap = new ArrayList<>();
-		for (int i = 0; i < siblingCount; i++)
-			if (!siblings.hasNext())
+		for (int i = 1; i <= siblingCount; i++) {
+			Box sibling = parent.child(index + i);
+			if (sibling == null)
 				throw new RuntimeException("there are no " + siblingCount + " next siblings");
-			else
-				siblingsToWrap.add(siblings.next());
-		int first = rewind(siblings) - siblingCount;
+			siblingsToWrap.add(sibling);
+		}
+		parent();
+		int first = index + 1;
 		Box newBox = siblingsToWrap.get(0) instanceof Box.BlockBox
-			? new Box.AnonymousBlockBox((Box.BlockBox)parent, _b -> siblingsToWrap.iterator()::next)
-			: new Box.InlineBox(null, parent, _b -> siblingsToWrap.iterator()::next);
+			? new Box.AnonymousBlockBox((Box.BlockBox)parent, _b -> MemoizingIterator.supplier(siblingsToWrap.iterator()))
+			: new Box.AnonymousInlineBox(parent, _b -> MemoizingIterator.supplier(siblingsToWrap.iterator()));
 		if (wrapper != null || attributes != null)
 			newBox = newBox.copy(wrapper, attributes);
-		updateCurrent(current.copy(updateIn(siblings, first, first + siblingCount, newBox)));
-		firstChild();
-		while (first-- > 1) nextSibling();
+		updateCurrent(current.copy(updateIn(parent.children(), first, first + siblingCount, newBox)));
+		child(index);
 		return current;
 	}
 
 	private void updateCurrent(Box newCurrent) {
-		if (path.empty())
-			updateRoot(newCurrent);
-		else {
-			Stack<ListIterator<Box>> newPath = new Stack<>();
-			Box cur = newCurrent;
-			while (!path.empty()) {
-				ListIterator<Box> siblings = path.peek();
-				Box parent = parent().get();
-				int i = rewind(siblings);
-				cur = parent.copy(updateIn(siblings, i - 1, cur));
-				siblings = cur.children();
-				forward(siblings, i);
-				newPath.add(0, siblings);
-			}
-			updateRoot(cur);
-			path = newPath;
+		Box cur = newCurrent;
+		for (int d = depth - 1; d >= 0; d--) {
+			cur = ancestors[d].copy(updateIn(ancestors[d].children(), indexes[d], cur));
+			ancestors[d] = cur;
 		}
+		updateRoot(cur);
 		current = newCurrent;
 	}
 
@@ -456,22 +427,16 @@ class BoxTreeWalker implements Cloneable {
 		} catch (CloneNotSupportedException e) {
 			throw new InternalError("coding error");
 		}
-		clone.path = deepCopy(path);
+		clone.ancestors = ancestors.clone();
+		clone.indexes = indexes.clone();
 		return clone;
 	}
 
-	private static int rewind(ListIterator<Box> iterator) {
-		int i = 0;
-		while (iterator.hasPrevious()) {
-			iterator.previous();
-			i++;
-		}
-		return i;
-	}
-
-	private static void forward(ListIterator<Box> iterator, int toIndex) {
-		while (toIndex-- > 0)
-			iterator.next();
+	private void restore(BoxTreeWalker saved) {
+		ancestors = saved.ancestors;
+		indexes = saved.indexes;
+		depth = saved.depth;
+		current = saved.current;
 	}
 
 	private static Supplier<Box> updateIn(Iterator<Box> children, int index, Box newChild) {
@@ -482,7 +447,7 @@ class BoxTreeWalker implements Cloneable {
 					children.next();
 					return newChild;
 				} else
-					return children.next();
+					return children.hasNext() ? children.next() : null;
 			}
 		};
 	}
@@ -496,7 +461,7 @@ class BoxTreeWalker implements Cloneable {
 					while (i++ < toIndex) children.next();
 					return newChild;
 				} else
-					return children.next();
+					return children.hasNext() ? children.next() : null;
 			}
 		};
 	}
@@ -510,24 +475,8 @@ class BoxTreeWalker implements Cloneable {
 				if (i++ >= index && newChildren.hasNext()) {
 					return newChildren.next();
 				} else
-					return children.next();
+					return children.hasNext() ? children.next() : null;
 			}
 		};
 	}
-
-	@SuppressWarnings("unchecked")
-	private static <T extends Cloneable> Stack<T> deepCopy(Stack<T> of) {
-		Stack<T> copy = new Stack<>();
-		for (T t : of)
-			try {
-				copy.push((T)t.getClass().getMethod("clone").invoke(t)); }
-			catch (IllegalAccessException
-			       | IllegalArgumentException
-			       | InvocationTargetException
-			       | NoSuchMethodException
-			       | SecurityException e) {
-				throw new RuntimeException("Could not invoke clone() method", e);
-			}
-		return copy;
-	}
 }
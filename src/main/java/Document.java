@@ -1,17 +1,46 @@
-import cz.vutbr.web.domassign.StyleMap;
+import java.util.function.Function;
+
+import cz.vutbr.web.css.NodeData;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.Type;
 
 public class Document {
 
 	private final Element root;
 
-	Document(org.w3c.dom.Document doc, StyleMap style) {
-		this.root = new Element(null, doc.getDocumentElement(), style);
+	// doc is the document node of Saxon's tree
+	Document(NodeInfo doc, Function<org.w3c.dom.Element,NodeData> cascade) {
+		AxisIterator children = doc.iterateAxis(AxisInfo.CHILD);
+		NodeInfo documentElement;
+		while ((documentElement = children.next()) != null && documentElement.getNodeKind() != Type.ELEMENT);
+		if (documentElement == null)
+			throw new IllegalArgumentException("no document element");
+		this.root = new Element(null, documentElement, cascade);
 	}
 
 	public Element root() {
 		return root;
 	}
 
+	// Materializes the element tree and the box tree of the document and releases the source tree
+	// and the style sheets, which are otherwise kept as long as any part of the document is
+	// reachable. The document can be used as before afterwards. Must not be called while the
+	// document is used from other threads.
+	public Document detach() {
+		root.detach();
+		Box box = root.getBox();
+		if (box != null)
+			materialize(box);
+		return this;
+	}
+
+	private static void materialize(Box box) {
+		for (Box b : box)
+			materialize(b);
+	}
+
 	@Override
 	public String toString() {
 		return super.toString();
@@ -1,112 +1,159 @@
 import java.net.URI;
-import java.util.AbstractMap;
-import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.regex.Pattern;
 
 import javax.xml.namespace.QName;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 
-import cz.vutbr.web.domassign.StyleMap;
+import cz.vutbr.web.css.CSSProperty.Display;
+import cz.vutbr.web.css.NodeData;
+import net.sf.saxon.dom.NodeOverNodeInfo;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.tree.iter.AxisIterator;
 
 public class Element implements Node {
 
 	private static final String HTML_NS = "http://www.w3.org/1999/xhtml";
-	private static final QName IMG = new QName(HTML_NS, "img");
-	private static final QName SRC = new QName("src");
+	private static final String XML_NS = "http://www.w3.org/XML/1998/namespace";
+	private static final QName IMG = QNamePool.get(HTML_NS, "img");
+	private static final QName SRC = QNamePool.get("src");
 
 	final Element parent;
 	private final QName name;
-	private final Map<QName,String> attributes;
 	private final Iterable<Node> children;
-	final Style style;
-	private final BoxPropertiesImpl boxProps;
+	// set to null by detach()
+	private NodeInfo node;
+	private Function<org.w3c.dom.Element,NodeData> cascade;
 
-	// assumes element is immutable
-	Element(Element parent, final org.w3c.dom.Element element, StyleMap style) {
+	// node is an element node of Saxon's tree, which is navigated directly
+	// assumes node is immutable
+	// cascade computes the cascaded style of an element; it is called at most once per element,
+	// the first time the style is needed, with a DOM view of the node
+	Element(Element parent, NodeInfo node, Function<org.w3c.dom.Element,NodeData> cascade) {
 		this.parent = parent;
-		this.name = nodeName(element);
-		final URI baseURI = URI.create(element.getBaseURI());
-		this.attributes = new AbstractMap<QName,String>() {
-				Set<Entry<QName,String>> entrySet = new AbstractSet<Entry<QName,String>>() {
-						org.w3c.dom.NamedNodeMap attributes = null;
-						int size, i = 0;
-						List<Entry<QName,String>> list = new ArrayList<>();
-						public final Iterator<Entry<QName,String>> iterator() {
-							return new MemoizingIterator<Entry<QName,String>>(list) {
-								public Entry<QName,String> computeNext() {
-									if (i < size()) {
-										org.w3c.dom.Node attr = attributes.item(i++);
-										QName name = nodeName(attr);
-										if ("http://www.w3.org/2000/xmlns/".equals(name.getNamespaceURI()))
-											return computeNext();
-										String value = attr.getNodeValue();
-										if (IMG.equals(Element.this.name) && SRC.equals(name))
-											value = baseURI.resolve(value).toString();
-										return new SimpleImmutableEntry<>(name, value);
-									}
-									throw new NoSuchElementException();
-								}
-							};
-						}
-						public int size() {
-							if (attributes == null) {
-								attributes = element.getAttributes();
-								size = attributes.getLength();
-							}
-							return size;
-						}
-					};
-				public Set<Entry<QName,String>> entrySet() {
-					return entrySet;
-				}
-			};
+		this.node = node;
+		this.cascade = cascade;
+		this.name = nodeName(node);
 		this.children = new Iterable<Node>() {
-				org.w3c.dom.NodeList children = null;
-				int size, i = 0;
-				List<Node> list = new ArrayList<>();
+				AxisIterator children = null;
+				MemoizingIterator.Memo<Node> memo = new MemoizingIterator.Memo<>();
 				public Iterator<Node> iterator() {
-					return new MemoizingIterator<Node>(list) {
+					return new MemoizingIterator<Node>(memo) {
 						public Node computeNext() {
 							// ignore child notes of replaced elements
 							if (IMG.equals(Element.this.name))
-								throw new NoSuchElementException();
-							if (children == null) {
-								children = element.getChildNodes();
-								size = children.getLength();
-							}
-							while (i < size) {
-								org.w3c.dom.Node child = children.item(i++);
-								if (child instanceof org.w3c.dom.Element)
-									return new Element(Element.this, (org.w3c.dom.Element)child, style);
-								else if (child instanceof org.w3c.dom.Text)
-									return new Text((org.w3c.dom.Text)child);
+								return null;
+							if (children == null)
+								children = Element.this.node.iterateAxis(AxisInfo.CHILD);
+							NodeInfo child;
+							while ((child = children.next()) != null) {
+								if (child.getNodeKind() == net.sf.saxon.type.Type.ELEMENT)
+									return new Element(Element.this, child, Element.this.cascade);
+								else if (child.getNodeKind() == net.sf.saxon.type.Type.TEXT)
+									return new Text(child.getStringValue());
 							}
-							throw new NoSuchElementException();
+							children = null; // not needed anymore
+							return null;
 						}
 					};
 				}
 			};
-		this.style = new Style(style.get(element), parent != null ? parent.style : null);
-		this.boxProps = new BoxPropertiesImpl(this.style, parent != null ? parent.boxProps : null);
+	}
+
+	// style, box properties and box are computed only once, also when the element is used from
+	// multiple threads
+	// style() and boxProps() lock this element and then its ancestors, never the other way around
+
+	private Style style = null;
+	synchronized Style style() {
+		if (style == null)
+			style = parent != null
+				? parent.style().child(cascade.apply(domElement()))
+				: new Style(cascade.apply(domElement()), null);
+		return style;
+	}
+
+	private BoxPropertiesImpl boxProps = null;
+	private synchronized BoxPropertiesImpl boxProps() {
+		if (boxProps == null)
+			boxProps = parent != null
+				? parent.boxProps().child(style())
+				: new BoxPropertiesImpl(style(), null);
+		return boxProps;
+	}
+
+	// computes everything that this element and its descendants still need from the DOM and from
+	// the cascade, and then drops the references to them
+	// must not be called while the element is used from other threads
+	void detach() {
+		if (node == null)
+			return;
+		boxProps();
+		getComputedDisplay();
+		getAttributes();
+		for (Node n : children)
+			if (n instanceof Element)
+				((Element)n).detach();
+		synchronized (this) {
+			node = null;
+			cascade = null;
+		}
 	}
 
 	public QName getName() {
 		return name;
 	}
 
+	// The base URI is only needed for resolving img/@src, so it is computed when first needed. An
+	// element without xml:base shares the URI object of its parent, so the ancestors are visited
+	// at most once per document rather than once per element.
+	private volatile URI baseURI = null;
+	private URI baseURI() {
+		URI uri = baseURI;
+		if (uri == null) {
+			if (parent == null)
+				uri = URI.create(node.getBaseURI());
+			else {
+				uri = parent.baseURI();
+				String xmlBase = node.getAttributeValue(XML_NS, "base");
+				if (xmlBase != null && !xmlBase.isEmpty())
+					uri = uri.resolve(xmlBase);
+			}
+			baseURI = uri;
+		}
+		return uri;
+	}
+
+	// the attributes are read on first access into an immutable hash map that is shared with the
+	// box of the element and with copies of the box
+	private volatile Map<QName,String> attributes = null;
 	public Map<QName,String> getAttributes() {
-		return attributes;
+		Map<QName,String> map = attributes;
+		if (map == null) {
+			ImmutableMap.Builder<QName,String> builder = ImmutableMap.builder();
+			AxisIterator attrs = node.iterateAxis(AxisInfo.ATTRIBUTE);
+			NodeInfo attr;
+			while ((attr = attrs.next()) != null) {
+				// namespace declarations are not attributes in Saxon's tree
+				QName name = nodeName(attr);
+				String value = attr.getStringValue();
+				if (IMG.equals(this.name) && SRC.equals(name))
+					value = baseURI().resolve(value).toString();
+				builder.put(name, value);
+			}
+			map = builder.build();
+			attributes = map;
+		}
+		return map;
 	}
 
 	public Iterable<Node> children() {
@@ -117,87 +164,28 @@ public class Element implements Node {
 	// "table-column-group" or "table-column"
 	// note that the CSS box module allows elements of type inline to contain elements of type block
 	// in which case it will not map to a box either, but this is not supported in this model
-	private Box box = null;
+	private volatile Box box = null;
 	public Box getBox() {
-		if (getComputedDisplay().equals("none")
-		    || getComputedDisplay().equals("table-column-group")
-		    || getComputedDisplay().equals("table-column"))
+		if (generatesNoBox())
 			return null;
+		Box box = this.box;
 		if (box == null) {
+			// computed without holding the lock because it may need the boxes of the parent
+			// and of the children, and only published while holding it
 			Box parentBox = parent == null ? null : parent.getBox();
-			boolean isBlock = !getComputedDisplay().equals("inline");
+			boolean isBlock = getComputedDisplay() != Display.INLINE;
 			if (isBlock && parentBox instanceof Box.InlineBox)
 				throw new RuntimeException();
-			if (!isBlock
-			    && !Iterables.any(children,
-			                      n -> n instanceof Element && !(((Element)n).getComputedDisplay().equals("none")
-			                                                     || ((Element)n).getComputedDisplay().equals("table-column-group")
-			                                                     || ((Element)n).getComputedDisplay().equals("table-column")))) {
-				String text = stringValue(children);
-				if (text.isEmpty()) text = null;
-				box = new Box.InlineBox(this, parentBox, text);
+			if (!hasChildBoxes()) {
+				box = new Box.InlineBox(this, parentBox, boxText());
 			} else {
 				Function<Box,Supplier<Box>> childBoxes = thisBox ->
 					new Supplier<Box>() {
-						Boolean hasBlocks = null;
-						Iterator<Node> processElements = null;
-						Iterator<List<Node>> blockGroups = null;
-						Iterator<List<Node>> inlineGroups = null;
+						Iterator<Object> items = null;
 						public Box get() {
-							if (processElements != null) {
-								while (processElements.hasNext()) {
-									Box b = ((Element)processElements.next()).getBox();
-									if (b != null) return b;
-								}
-								processElements = null;
-							}
-							if (inlineGroups != null && inlineGroups.hasNext()) {
-								List<Node> g = inlineGroups.next();
-								if (g.get(0) instanceof Text) {
-									String text = stringValue(g);
-									if (!text.isEmpty())
-										return new Box.AnonymousInlineBox(thisBox, text);
-								} else {
-									processElements = g.iterator();
-									return get();
-								}
-							}
-							if (blockGroups == null)
-								blockGroups = groupAdjacent(children, Element::isBlock).iterator();
-							while (blockGroups.hasNext()) {
-								List<Node> g = blockGroups.next();
-								if (isBlock(g.get(0))) {
-									processElements = g.iterator();
-									return get();
-								} else {
-									if (hasBlocks == null)
-										hasBlocks = Iterables.any(children, Element::isBlock);
-									if (hasBlocks) {
-										if (Iterables.any(g, Element::isInline) || !isWhiteSpaceOnly(stringValue(g)))
-											return new Box.AnonymousBlockBox(
-												(Box.BlockBox)thisBox,
-												b -> {
-													List<Box> inlineBoxes = new ArrayList<>();
-													for (List<Node> gg : groupAdjacent(g, Predicates.instanceOf(Text.class))) {
-														if (gg.get(0) instanceof Text) {
-															String text = stringValue(gg);
-															if (!text.isEmpty())
-																inlineBoxes.add(new Box.AnonymousInlineBox(b, text));
-														} else
-															for (Node n : gg) {
-																Box inlineBox = ((Element)n).getBox();
-																if (inlineBox != null) inlineBoxes.add(inlineBox);
-															}
-													}
-													return inlineBoxes.iterator()::next;
-												});
-									} else {
-										inlineGroups = groupAdjacent(g, Predicates.instanceOf(Text.class)).iterator();
-										return get();
-									}
-								}
-							}
-							throw new NoSuchElementException();
+							if (items == null)
+								items = childBoxes().iterator();
+							return items.hasNext() ? box(items.next(), thisBox) : null;
 						}
 					};
 				if (isBlock)
@@ -205,22 +193,109 @@ public class Element implements Node {
 				else
 					box = new Box.InlineBox(this, parentBox, childBoxes);
 			}
+			synchronized (this) {
+				if (this.box == null)
+					this.box = box;
+				box = this.box;
+			}
 		}
 		return box;
 	}
 
-	private String getComputedDisplay() {
-		return boxProps.display();
+	// The boxes of the children of this element, described in terms of the child nodes: an Element
+	// stands for its box, a String for an anonymous inline box with that text, and a List for an
+	// anonymous block box with the listed children. Used by getBox() and by FlatBoxTree, which
+	// build the boxes from this in different ways.
+	List<Object> childBoxes() {
+		List<Object> boxes = new ArrayList<>();
+		boolean hasBlocks = Iterables.any(children, Element::isBlock);
+		for (List<Node> g : groupAdjacent(children, Element::isBlock)) {
+			if (isBlock(g.get(0)))
+				boxes.addAll(g);
+			else if (!hasBlocks)
+				addInlineBoxes(g, boxes);
+			else if (Iterables.any(g, Element::isInline) || !isWhiteSpaceOnly(g)) {
+				List<Object> anonymousBlock = new ArrayList<>();
+				addInlineBoxes(g, anonymousBlock);
+				boxes.add(anonymousBlock);
+			}
+		}
+		return boxes;
 	}
 
-	private static QName nodeName(org.w3c.dom.Node node) {
-		String prefix = node.getPrefix();
-		String ns = node.getNamespaceURI();
-		String localPart = node.getLocalName();
-		if (prefix != null)
-			return new QName(ns, localPart, prefix);
-		else
-			return new QName(ns, localPart);
+	private static void addInlineBoxes(List<Node> nodes, List<Object> boxes) {
+		for (List<Node> g : groupAdjacent(nodes, Predicates.instanceOf(Text.class)))
+			if (g.get(0) instanceof Text) {
+				String text = stringValue(g);
+				if (!text.isEmpty())
+					boxes.add(text);
+			} else
+				for (Node n : g)
+					if (!((Element)n).generatesNoBox())
+						boxes.add(n);
+	}
+
+	// creates the box described by an item of childBoxes()
+	private static Box box(Object item, Box parent) {
+		if (item instanceof Element)
+			return ((Element)item).getBox();
+		else if (item instanceof String)
+			return new Box.AnonymousInlineBox(parent, (String)item);
+		else {
+			List<?> items = (List<?>)item;
+			return new Box.AnonymousBlockBox(
+				(Box.BlockBox)parent,
+				b -> {
+					Iterator<?> i = items.iterator();
+					return () -> i.hasNext() ? box(i.next(), b) : null;
+				});
+		}
+	}
+
+	// false for an inline element that contains only text: the text is stored in its box instead
+	boolean hasChildBoxes() {
+		return getComputedDisplay() != Display.INLINE
+			|| Iterables.any(children, n -> n instanceof Element && !((Element)n).generatesNoBox());
+	}
+
+	// the text of the box of an element without child boxes
+	String boxText() {
+		String text = textContent();
+		return text.isEmpty() ? null : text;
+	}
+
+	// the computed display of the element, cached because it is needed many times while the box
+	// tree is built
+	private Display display = null;
+	Display getComputedDisplay() {
+		Display d = display;
+		if (d == null) {
+			d = boxProps().displayProp();
+			display = d;
+		}
+		return d;
+	}
+
+	// see getBox()
+	boolean generatesNoBox() {
+		switch (getComputedDisplay()) {
+		case NONE:
+		case TABLE_COLUMN_GROUP:
+		case TABLE_COLUMN:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static QName nodeName(NodeInfo node) {
+		return QNamePool.get(node.getURI(), node.getLocalPart(), node.getPrefix());
+	}
+
+	// jStyleParser works on the DOM, so the cascade gets a DOM view of the node, which is only
+	// created when the style is computed
+	private org.w3c.dom.Element domElement() {
+		return (org.w3c.dom.Element)NodeOverNodeInfo.wrap(node);
 	}
 
 	private static List<List<Node>> groupAdjacent(Iterable<Node> nodes, Predicate<Object> key) {
@@ -241,35 +316,90 @@ public class Element implements Node {
 		return list;
 	}
 
+	// same as getBox() instanceof Box.BlockBox, but without creating the box
 	private static boolean isBlock(Object n) {
 		return n instanceof Element
-			&& ((Element)n).getBox() instanceof Box.BlockBox;
+			&& !((Element)n).generatesNoBox()
+			&& ((Element)n).getComputedDisplay() != Display.INLINE;
 	}
 
+	// same as getBox() instanceof Box.InlineBox, but without creating the box
 	private static boolean isInline(Object n) {
 		return n instanceof Element
-			&& ((Element)n).getBox() instanceof Box.InlineBox;
+			&& !((Element)n).generatesNoBox()
+			&& ((Element)n).getComputedDisplay() == Display.INLINE;
+	}
+
+	// the text content of the element, memoized
+	// not volatile: strings are immutable, so another thread at worst computes it again
+	private String textContent = null;
+	private String textContent() {
+		String t = textContent;
+		if (t == null) {
+			t = stringValue(children);
+			textContent = t;
+		}
+		return t;
+	}
+
+	private Boolean whiteSpaceOnly = null;
+	private boolean isWhiteSpaceOnly() {
+		Boolean w = whiteSpaceOnly;
+		if (w == null) {
+			w = textContent != null ? isWhiteSpaceOnly(textContent) : isWhiteSpaceOnly(children);
+			whiteSpaceOnly = w;
+		}
+		return w;
 	}
 
 	private static String stringValue(Iterable<Node> nodes) {
-		StringBuilder s = new StringBuilder();
+		// a single part, for example the text of a nested inline element, is shared instead of
+		// copied
+		String single = null;
+		StringBuilder s = null;
 		for (Node n : nodes) {
+			String t;
 			if (n instanceof Text)
-				s.append(((Text)n).characters());
+				t = ((Text)n).characters();
+			else if (!((Element)n).generatesNoBox())
+				t = ((Element)n).textContent();
+			else
+				continue;
+			if (t.isEmpty())
+				continue;
+			if (s != null)
+				s.append(t);
+			else if (single == null)
+				single = t;
 			else {
-				Element e = (Element)n;
-				if (!(e.getComputedDisplay().equals("none")
-				      || e.getComputedDisplay().equals("table-column-group")
-				      || e.getComputedDisplay().equals("table-column")))
-					s.append(stringValue(e.children()));
+				s = new StringBuilder(single).append(t);
+				single = null;
 			}
 		}
-		return s.toString();
+		return s != null ? s.toString() : single != null ? single : "";
 	}
 
-	private static final Pattern WHITE_SPACE = Pattern.compile("\\s*");
+	// same as isWhiteSpaceOnly(stringValue(nodes)) but without building the string
+	private static boolean isWhiteSpaceOnly(Iterable<Node> nodes) {
+		for (Node n : nodes) {
+			if (n instanceof Text) {
+				if (!((Text)n).isWhiteSpaceOnly())
+					return false;
+			} else if (!((Element)n).generatesNoBox() && !((Element)n).isWhiteSpaceOnly())
+				return false;
+		}
+		return true;
+	}
 
-	private static boolean isWhiteSpaceOnly(String text) {
-		return WHITE_SPACE.matcher(text).matches();
+	// same as matching the regular expression \s*
+	static boolean isWhiteSpaceOnly(String text) {
+		for (int i = 0; i < text.length(); i++)
+			switch (text.charAt(i)) {
+			case ' ': case '\t': case '\n': case '\013': case '\f': case '\r':
+				break;
+			default:
+				return false;
+			}
+		return true;
 	}
 }
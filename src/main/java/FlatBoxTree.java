@@ -0,0 +1,234 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.namespace.QName;
+
+import cz.vutbr.web.css.CSSProperty.Display;
+
+/**
+ * Box tree stored in flat arrays, for workloads that process the whole document anyway.
+ *
+ * The tree is built by walking the element tree once, with the same grouping rules as
+ * Element.getBox(), but without creating the lazy box tree and its closures and memos. Boxes are
+ * numbered in breadth-first order, so that the children of a box have consecutive numbers, and the
+ * structure is stored in parent/first-child/child-count arrays. Every box has a Box view whose
+ * children are read by index from these arrays, so that Renderer, Serializer, Transformer and
+ * BoxTreeWalker can be used unchanged. Immutable.
+ */
+public class FlatBoxTree {
+
+	private final int size;
+	private final int[] parent;
+	private final int[] firstChild; // -1 for none
+	private final int[] childCount;
+	private final Box[] boxes;
+
+	private FlatBoxTree(Element root) {
+		if (root.generatesNoBox())
+			throw new IllegalArgumentException("element does not generate a box");
+		int capacity = 64;
+		int[] parent = new int[capacity];
+		int[] firstChild = new int[capacity];
+		int[] childCount = new int[capacity];
+		byte[] type = new byte[capacity];
+		BoxPropertiesImpl[] props = new BoxPropertiesImpl[capacity];
+		// only needed while building: the node (see Element.childBoxes()) that each box is made
+		// from, and the box whose properties are the parent properties of the box (for an element
+		// in an anonymous block box, this is the box of the parent element)
+		Object[] items = new Object[capacity];
+		int[] propsParent = new int[capacity];
+		items[0] = root;
+		parent[0] = -1;
+		propsParent[0] = -1;
+		int n = 1;
+		for (int i = 0; i < n; i++) {
+			Object item = items[i];
+			List<?> children;
+			if (item instanceof Element) {
+				Element e = (Element)item;
+				boolean isBlock = e.getComputedDisplay() != Display.INLINE;
+				if (isBlock && propsParent[i] >= 0 && !isBlockType(type[propsParent[i]]))
+					throw new RuntimeException();
+				type[i] = isBlock ? Box.BLOCK : Box.INLINE;
+				props[i] = propsParent[i] >= 0
+					? props[propsParent[i]].child(e.style())
+					: new BoxPropertiesImpl(e.style(), null);
+				children = e.hasChildBoxes() ? e.childBoxes() : null;
+			} else if (item instanceof String) {
+				type[i] = Box.ANONYMOUS_INLINE;
+				props[i] = props[propsParent[i]].anonymousInlineChild();
+				children = null;
+			} else {
+				type[i] = Box.ANONYMOUS_BLOCK;
+				props[i] = props[propsParent[i]].anonymousBlockChild();
+				children = (List<?>)item;
+			}
+			int count = children != null ? children.size() : 0;
+			firstChild[i] = count > 0 ? n : -1;
+			childCount[i] = count;
+			if (n + count > capacity) {
+				while (n + count > capacity)
+					capacity *= 2;
+				parent = Arrays.copyOf(parent, capacity);
+				firstChild = Arrays.copyOf(firstChild, capacity);
+				childCount = Arrays.copyOf(childCount, capacity);
+				type = Arrays.copyOf(type, capacity);
+				props = Arrays.copyOf(props, capacity);
+				items = Arrays.copyOf(items, capacity);
+				propsParent = Arrays.copyOf(propsParent, capacity);
+			}
+			for (int j = 0; j < count; j++) {
+				Object child = children.get(j);
+				parent[n] = i;
+				items[n] = child;
+				propsParent[n] = child instanceof Element && type[i] == Box.ANONYMOUS_BLOCK ? propsParent[i] : i;
+				n++;
+			}
+		}
+		this.size = n;
+		this.parent = Arrays.copyOf(parent, n);
+		this.firstChild = Arrays.copyOf(firstChild, n);
+		this.childCount = Arrays.copyOf(childCount, n);
+		this.boxes = new Box[n];
+		for (int i = 0; i < n; i++) {
+			Object item = items[i];
+			Element e = item instanceof Element ? (Element)item : null;
+			String text = item instanceof String
+				? (String)item
+				: e != null && !e.hasChildBoxes() ? e.boxText() : null;
+			boxes[i] = Box.create(type[i],
+			                      e != null ? e.getName() : null,
+			                      e != null ? e.getAttributes() : null,
+			                      childCount[i] > 0 ? new Children(i) : null,
+			                      text,
+			                      props[i]);
+		}
+	}
+
+	// walks the whole element tree
+	public static FlatBoxTree of(Element root) {
+		return new FlatBoxTree(root);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// the following methods take and return box indexes, -1 means none
+
+	public int parent(int box) {
+		return parent[box];
+	}
+
+	public int firstChild(int box) {
+		return firstChild[box];
+	}
+
+	public int nextSibling(int box) {
+		return box + 1 < size && parent[box + 1] == parent[box] ? box + 1 : -1;
+	}
+
+	public boolean isBlock(int box) {
+		return boxes[box] instanceof Box.BlockBox;
+	}
+
+	public QName getName(int box) {
+		return boxes[box].getName();
+	}
+
+	public String text(int box) {
+		return boxes[box].text;
+	}
+
+	public Box box(int box) {
+		return boxes[box];
+	}
+
+	public Box root() {
+		return boxes[0];
+	}
+
+	private static boolean isBlockType(byte type) {
+		return type == Box.BLOCK || type == Box.ANONYMOUS_BLOCK;
+	}
+
+	// the children of a box, read by index from the arrays
+	private class Children implements ListIterable<Box> {
+
+		private final int box;
+
+		Children(int box) {
+			this.box = box;
+		}
+
+		public Box get(int index) {
+			return index >= 0 && index < childCount[box] ? boxes[firstChild[box] + index] : null;
+		}
+
+		public ListIterator<Box> iterator() {
+			return new ChildIterator(box);
+		}
+	}
+
+	private class ChildIterator implements ListIterator<Box> {
+
+		private final int first;
+		private final int count;
+		private int i = 0;
+
+		ChildIterator(int box) {
+			first = firstChild[box];
+			count = childCount[box];
+		}
+
+		public boolean hasNext() {
+			return i < count;
+		}
+
+		public boolean hasPrevious() {
+			return i > 0;
+		}
+
+		public Box next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return boxes[first + i++];
+		}
+
+		public Box previous() {
+			if (!hasPrevious())
+				throw new NoSuchElementException();
+			return boxes[first + --i];
+		}
+
+		public int nextIndex() {
+			return i;
+		}
+
+		public int previousIndex() {
+			return i - 1;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		public void set(Box e) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void add(Box e) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ChildIterator clone() {
+			try {
+				return (ChildIterator)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new InternalError("coding error");
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cz.vutbr.web.css.NetworkProcessor;
+
+/**
+ * Network processor that serves resources from memory and never opens a connection. Resources
+ * are either byte arrays or memory-mapped files, for example from an unpacked EPUB. Fetching a
+ * resource that was not added fails with a FileNotFoundException. Thread-safe.
+ */
+public class InMemoryNetworkProcessor implements NetworkProcessor {
+
+	private final Map<String,ByteBuffer> resources = new ConcurrentHashMap<>();
+
+	public InMemoryNetworkProcessor put(URL url, byte[] content) {
+		resources.put(url.toString(), ByteBuffer.wrap(content));
+		return this;
+	}
+
+	public InMemoryNetworkProcessor put(URL url, File file) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+			// the mapping remains valid after the channel is closed
+			resources.put(url.toString(), f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length()));
+		}
+		return this;
+	}
+
+	// add all files in the directory and its subdirectories, with URLs relative to base
+	public InMemoryNetworkProcessor putDirectory(File directory, URL base) throws IOException {
+		putDirectory(directory, directory, base);
+		return this;
+	}
+
+	private void putDirectory(File root, File directory, URL base) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("not a directory: " + directory);
+		for (File f : files)
+			if (f.isDirectory())
+				putDirectory(root, f, base);
+			else
+				put(new URL(base, root.toURI().relativize(f.toURI()).toString()), f);
+	}
+
+	public InputStream fetch(URL url) throws IOException {
+		ByteBuffer resource = resources.get(url.toString());
+		if (resource == null)
+			throw new FileNotFoundException(url.toString());
+		return new ByteBufferInputStream(resource.duplicate());
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -3,4 +3,15 @@ public interface ListIterable<T> extends Iterable<T> {
 	@Override
 	public ListIterator<T> iterator();
 
+	// returns null if there is no element at index
+	public default T get(int index) {
+		ListIterator<T> iterator = iterator();
+		for (int i = 0; iterator.hasNext(); i++) {
+			T next = iterator.next();
+			if (i == index)
+				return next;
+		}
+		return null;
+	}
+
 }
@@ -1,33 +1,69 @@
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.function.Supplier;
 
 abstract class MemoizingIterator<T> implements Iterator<T>, ListIterator<T> {
 
-	private final List<T> list;
+	// The elements computed so far, shared by all iterators over the same sequence. Iterators may be
+	// used from different threads: elements that are already computed are read without locking,
+	// and new elements are computed one at a time while holding the lock of this object (there is
+	// no global lock).
+	static class Memo<T> {
+		private volatile Object[] elements = new Object[4];
+		private volatile int size = 0;
+		private volatile boolean done = false;
+
+		@SuppressWarnings("unchecked")
+		T get(int index) {
+			// size is read before elements, so that elements contains the element at index
+			if (index >= size)
+				throw new NoSuchElementException();
+			return (T)elements[index];
+		}
+
+		// returns true if the sequence has an element at index
+		boolean has(int index, MemoizingIterator<T> iterator) {
+			if (index < size)
+				return true;
+			if (done)
+				return false;
+			synchronized (this) {
+				while (size <= index) {
+					if (done)
+						return false;
+					T next = iterator.computeNext();
+					if (next == null) {
+						done = true;
+						return false;
+					}
+					Object[] e = elements;
+					if (size == e.length) {
+						e = Arrays.copyOf(e, 2 * size);
+						elements = e;
+					}
+					e[size] = next;
+					size = size + 1; // publishes the element
+				}
+				return true;
+			}
+		}
+	}
+
+	private final Memo<T> memo;
 	private int i = 0;
-	private boolean done = false;
 
-	public MemoizingIterator(List<T> list) {
-		this.list = list;
+	public MemoizingIterator(Memo<T> memo) {
+		this.memo = memo;
 	}
 
+	// returns null when there are no more elements
+	// called while holding the lock of the memo, so implementations that share state between the
+	// iterators of a memo don't need to synchronize
 	public abstract T computeNext();
 
 	public boolean hasNext() {
-		if (i < list.size())
-			return true;
-		if (done)
-			return false;
-		try {
-			list.add(computeNext());
-			return true;
-		} catch (NoSuchElementException e) {
-			done = true;
-			return false;
-		}
+		return memo.has(i, this);
 	}
 
 	public boolean hasPrevious() {
@@ -37,13 +73,13 @@ abstract class MemoizingIterator<T> implements Iterator<T>, ListIterator<T> {
 	public T next() {
 		if (!hasNext())
 			throw new NoSuchElementException();
-		return list.get(i++);
+		return memo.get(i++);
 	}
 
 	public T previous() {
 		if (!hasPrevious())
 			throw new NoSuchElementException();
-		return list.get(--i);
+		return memo.get(--i);
 	}
 
 	public int nextIndex() {
@@ -77,16 +113,32 @@ abstract class MemoizingIterator<T> implements Iterator<T>, ListIterator<T> {
 		}
 	}
 
+	// the supplier returns null when there are no more elements
 	public static <T> ListIterable<T> iterable(Supplier<T> supplier) {
 		return new ListIterable<T>() {
-			List<T> list = new ArrayList<>();
+			Memo<T> memo = new Memo<>();
+			Supplier<T> s = supplier; // released at the end, together with whatever it references
 			public ListIterator<T> iterator() {
-				return new MemoizingIterator<T>(list) {
+				return new MemoizingIterator<T>(memo) {
 					public T computeNext() {
-						return supplier.get();
+						T next = s.get();
+						if (next == null)
+							s = null;
+						return next;
 					}
 				};
 			}
+			// constant time once the element has been computed
+			public T get(int index) {
+				if (index < 0)
+					return null;
+				return memo.has(index, (MemoizingIterator<T>)iterator()) ? memo.get(index) : null;
+			}
 		};
 	}
+
+	// supplier of the remaining elements of an iterator, for use with iterable()
+	public static <T> Supplier<T> supplier(Iterator<T> iterator) {
+		return () -> iterator.hasNext() ? iterator.next() : null;
+	}
 }
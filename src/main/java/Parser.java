@@ -1,7 +1,21 @@
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Source;
+import javax.xml.transform.stax.StAXSource;
 import javax.xml.transform.stream.StreamSource;
 
 import cz.vutbr.web.css.CSSException;
@@ -12,38 +26,242 @@ import cz.vutbr.web.css.NodeData;
 import cz.vutbr.web.css.StyleSheet;
 import cz.vutbr.web.csskit.DefaultNetworkProcessor;
 import cz.vutbr.web.domassign.Analyzer;
+import cz.vutbr.web.domassign.DirectAnalyzer;
 import cz.vutbr.web.domassign.SingleMapNodeData;
 import cz.vutbr.web.domassign.StyleMap;
 import net.sf.saxon.dom.DocumentOverNodeInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 
+/**
+ * Holds the state that is shared between documents (Saxon processor, user agent style
+ * sheet). Instances are immutable and may be reused from multiple threads.
+ */
 public class Parser {
 
 	private final static URL DEFAULT_CSS = Parser.class.getResource("html4.css");
+	private final static String HTML_NS = "http://www.w3.org/1999/xhtml";
 
+	// global state of CSSFactory: only ever set here, during class initialization, so it is
+	// visible to and the same for all threads that parse documents
 	static {
 		CSSFactory.registerNodeDataInstance(MyNodeData.class);
 	}
 
-	public static Document parse(InputStream document, URL base) {
+	private final Processor processor;
+	private final NetworkProcessor network;
+	private final StyleSheet userAgentStyleSheet;
+	private final StyleSheetCache styleSheetCache;
+	private final boolean lazyCascade;
+	private final boolean pruneStyleSheets;
+
+	public Parser() {
+		processor = new Processor(false);
 		try {
-			org.w3c.dom.Document doc = (org.w3c.dom.Document)DocumentOverNodeInfo.wrap(
-				new Processor(false).newDocumentBuilder()
-					.build(new StreamSource(document, base.toString()))
-					.getUnderlyingNode());
-			NetworkProcessor network = new DefaultNetworkProcessor();
-			StyleSheet stylesheet = CSSFactory.parse(DEFAULT_CSS, network, null);
-			stylesheet = CSSFactory.getUsedStyles(doc, null, base, new MediaSpec("screen"), network, stylesheet);
-			StyleMap style = new Analyzer(stylesheet).evaluateDOM(doc, "screen", false);
-			return new Document(doc, style);
+			// the user agent style sheet is a class path resource and does not depend on the
+			// network processor that is used for the documents
+			userAgentStyleSheet = CSSFactory.parse(DEFAULT_CSS, new DefaultNetworkProcessor(), null);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} catch (SaxonApiException e) {
-			throw new RuntimeException(e);
 		} catch (CSSException e) {
 			throw new RuntimeException(e);
 		}
+		network = new DefaultNetworkProcessor();
+		styleSheetCache = new StyleSheetCache(32);
+		lazyCascade = false;
+		pruneStyleSheets = true;
+	}
+
+	private Parser(Parser parser,
+	               NetworkProcessor network,
+	               StyleSheetCache styleSheetCache,
+	               boolean lazyCascade,
+	               boolean pruneStyleSheets) {
+		this.processor = parser.processor;
+		this.userAgentStyleSheet = parser.userAgentStyleSheet;
+		this.network = network;
+		this.styleSheetCache = styleSheetCache;
+		this.lazyCascade = lazyCascade;
+		this.pruneStyleSheets = pruneStyleSheets;
+	}
+
+	// returns a parser that shares everything with this parser except the network processor,
+	// which is used for fetching the style sheets linked from the documents
+	public Parser withNetworkProcessor(NetworkProcessor network) {
+		if (network == null) throw new IllegalArgumentException();
+		return new Parser(this, network, styleSheetCache, lazyCascade, pruneStyleSheets);
+	}
+
+	// returns a parser that shares everything with this parser except the style sheet cache
+	// null means don't cache style sheets
+	public Parser withStyleSheetCache(StyleSheetCache cache) {
+		return new Parser(this, network, cache, lazyCascade, pruneStyleSheets);
+	}
+
+	// returns a parser that shares everything with this parser but that computes the style of an
+	// element only when it is first needed, instead of computing the style of all elements up
+	// front, which pays off when only a part of a document is used
+	public Parser withLazyCascade(boolean lazyCascade) {
+		return new Parser(this, network, styleSheetCache, lazyCascade, pruneStyleSheets);
+	}
+
+	// returns a parser that shares everything with this parser but that does or does not remove
+	// the rules that can not match any element of the document before computing the cascade
+	// (see StyleSheetPruner). Pruning walks the whole document up front, so it is not done with a
+	// lazy cascade.
+	public Parser withStyleSheetPruning(boolean pruneStyleSheets) {
+		return new Parser(this, network, styleSheetCache, lazyCascade, pruneStyleSheets);
+	}
+
+	public StyleSheetCache getStyleSheetCache() {
+		return styleSheetCache;
+	}
+
+	public static Document parse(InputStream document, URL base) {
+		return DefaultParser.INSTANCE.parse(new StreamSource(document, base.toString()));
+	}
+
+	// the system ID of the source is used as the base URL
+	public Document parse(Source document) {
+		try {
+			return parse(document, new URL(document.getSystemId()), processor.newDocumentBuilder());
+		} catch (MalformedURLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// A StAXSource has no system ID, so the base URL is set on the document builder instead. It
+	// must therefore also be a valid URI.
+	public Document parse(XMLStreamReader document, URL base) {
+		DocumentBuilder builder = processor.newDocumentBuilder();
+		try {
+			builder.setBaseURI(base.toURI());
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("base URL is not a valid URI: " + base, e);
+		}
+		return parse(new StAXSource(document), base, builder);
+	}
+
+	private Document parse(Source document, URL base, DocumentBuilder builder) {
+		try {
+			NodeInfo tree = builder.build(document).getUnderlyingNode();
+			// the DOM view is only used by jStyleParser; the element tree reads Saxon's tree directly
+			org.w3c.dom.Document doc = (org.w3c.dom.Document)DocumentOverNodeInfo.wrap(tree);
+			StyleSheet stylesheet = copyOf(userAgentStyleSheet);
+			NetworkProcessor network = this.network;
+			if (styleSheetCache != null) {
+				// add the cached style sheets to the list ourselves and hide them from getUsedStyles()
+				Map<String,Integer> hide = new HashMap<>();
+				for (URL url : leadingLinkedStyleSheets(doc, base)) {
+					StyleSheet linked = styleSheetCache.get(url, network);
+					if (linked == null)
+						break;
+					stylesheet.addAll(linked);
+					hide.merge(url.toString(), 1, Integer::sum);
+				}
+				if (!hide.isEmpty())
+					network = url -> {
+						Integer n = hide.get(url.toString());
+						if (n != null && n > 0) {
+							hide.put(url.toString(), n - 1);
+							return new ByteArrayInputStream(new byte[0]);
+						}
+						return this.network.fetch(url);
+					};
+			}
+			stylesheet = CSSFactory.getUsedStyles(doc, null, base, new MediaSpec("screen"), network, stylesheet);
+			if (pruneStyleSheets && !lazyCascade)
+				stylesheet = StyleSheetPruner.prune(stylesheet, doc);
+			Function<org.w3c.dom.Element,NodeData> cascade;
+			if (lazyCascade) {
+				DirectAnalyzer analyzer = new DirectAnalyzer(stylesheet);
+				// the analyzer is not thread-safe: lock it for the case that the document is used
+				// from multiple threads
+				cascade = e -> {
+					synchronized (analyzer) {
+						NodeData style = analyzer.getElementStyle(e, null, "screen");
+						return style != null ? style.concretize() : null;
+					}
+				};
+			} else {
+				StyleMap style = new Analyzer(stylesheet).evaluateDOM(doc, "screen", false);
+				cascade = style::get;
+			}
+			return new Document(tree, cascade);
+		} catch (SaxonApiException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// the documents are parsed in parallel on the executor
+	// the futures are returned in the same order as the documents
+	public List<CompletableFuture<Document>> parseAll(Collection<? extends Source> documents, Executor executor) {
+		List<CompletableFuture<Document>> futures = new ArrayList<>();
+		for (Source d : documents)
+			futures.add(CompletableFuture.supplyAsync(() -> parse(d), executor));
+		return futures;
+	}
+
+	// getUsedStyles() appends the author style sheets to the style sheet that is passed, so pass it
+	// a fresh list (the rules themselves are not modified and can be shared)
+	private static StyleSheet copyOf(StyleSheet stylesheet) {
+		StyleSheet copy = (StyleSheet)CSSFactory.getRuleFactory().createStyleSheet().unlock();
+		copy.addAll(stylesheet);
+		return copy;
+	}
+
+	// The style sheets that getUsedStyles() will process first, in document order. Collecting
+	// stops at the first style element or at the first link that getUsedStyles() might treat
+	// differently, so that the cascade order is not affected when these style sheets are added
+	// before the others.
+	private static List<URL> leadingLinkedStyleSheets(org.w3c.dom.Document doc, URL base) {
+		List<URL> links = new ArrayList<>();
+		collectLinkedStyleSheets(doc, base, links);
+		return links;
+	}
+
+	// returns false when collecting should stop
+	private static boolean collectLinkedStyleSheets(org.w3c.dom.Node node, URL base, List<URL> links) {
+		for (org.w3c.dom.Node n = node.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (!(n instanceof org.w3c.dom.Element))
+				continue;
+			org.w3c.dom.Element e = (org.w3c.dom.Element)n;
+			if (isHTMLElement(e, "style"))
+				return false;
+			if (isHTMLElement(e, "link")) {
+				String rel = e.getAttribute("rel").toLowerCase();
+				if (rel.contains("stylesheet")) {
+					String type = e.getAttribute("type").toLowerCase();
+					if (rel.contains("alternate")
+					    || !(type.isEmpty() || "text/css".equals(type))
+					    || !e.getAttribute("media").isEmpty()
+					    || e.getAttribute("href").isEmpty())
+						return false;
+					try {
+						links.add(new URL(base, e.getAttribute("href")));
+					} catch (MalformedURLException ex) {
+						return false;
+					}
+				}
+			}
+			if (!collectLinkedStyleSheets(e, base, links))
+				return false;
+		}
+		return true;
+	}
+
+	// compares the local name and namespace, so that the prefix does not matter
+	private static boolean isHTMLElement(org.w3c.dom.Element e, String localName) {
+		String ns = e.getNamespaceURI();
+		return (ns == null || ns.isEmpty() || HTML_NS.equals(ns))
+			&& localName.equalsIgnoreCase(e.getLocalName() != null ? e.getLocalName() : e.getNodeName());
+	}
+
+	// instance used by the static parse method, created on first use
+	private static class DefaultParser {
+		private static final Parser INSTANCE = new Parser();
 	}
 
 	public static class MyNodeData extends SingleMapNodeData {
@@ -0,0 +1,58 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.namespace.QName;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Canonical QName instances for element and attribute names. Names that are obtained from the
+ * pool with the same namespace, local part and prefix are the same object, so comparing them
+ * with equals() returns at the identity check. A name that is used with different prefixes is
+ * pooled once for every prefix. Names are kept in the pool as long as they are in
+ * use. Thread-safe.
+ */
+class QNamePool {
+
+	private QNamePool() {}
+
+	// by namespace, then by prefixed name
+	private final static ConcurrentMap<String,ConcurrentMap<String,QName>> pool = new ConcurrentHashMap<>();
+
+	// name in no namespace
+	static QName get(String localPart) {
+		return get("", localPart, "");
+	}
+
+	static QName get(String namespaceURI, String localPart) {
+		return get(namespaceURI, localPart, "");
+	}
+
+	static QName get(String namespaceURI, String localPart, String prefix) {
+		if (namespaceURI == null)
+			namespaceURI = "";
+		if (prefix == null)
+			prefix = "";
+		ConcurrentMap<String,QName> names = pool.get(namespaceURI);
+		if (names == null) {
+			names = new MapMaker().weakValues().makeMap();
+			ConcurrentMap<String,QName> n = pool.putIfAbsent(namespaceURI, names);
+			if (n != null)
+				names = n;
+		}
+		// a local part can not contain a colon, so the key is unambiguous
+		String key = prefix.isEmpty() ? localPart : prefix + ":" + localPart;
+		QName name = names.get(key);
+		if (name == null) {
+			name = new QName(namespaceURI, localPart, prefix);
+			QName n = names.putIfAbsent(key, name);
+			if (n != null)
+				name = n;
+		}
+		return name;
+	}
+
+	static QName intern(QName name) {
+		return get(name.getNamespaceURI(), name.getLocalPart(), name.getPrefix());
+	}
+}
@@ -17,16 +17,16 @@ public class Renderer {
 	private static final String SEMANTIC_CSS = Renderer.class.getResource("html5-semantic.css").toString();
 
 	private static final String HTML_NS = "http://www.w3.org/1999/xhtml";
-	private static final QName HTML = new QName(HTML_NS, "html");
-	private static final QName HEAD = new QName(HTML_NS, "head");
-	private static final QName LINK = new QName(HTML_NS, "link");
-	private static final QName DIV = new QName(HTML_NS, "div");
-	private static final QName SPAN = new QName(HTML_NS, "span");
-	private static final Map<QName,String> LINK_ATTRS = ImmutableMap.of(new QName("rel"), "stylesheet",
-	                                                                    new QName("type"), "text/css");
-	private static final QName HREF = new QName("href");
-	private static final QName STYLE = new QName("style");
-	private static final QName CLASS = new QName("class");
+	private static final QName HTML = QNamePool.get(HTML_NS, "html");
+	private static final QName HEAD = QNamePool.get(HTML_NS, "head");
+	private static final QName LINK = QNamePool.get(HTML_NS, "link");
+	private static final QName DIV = QNamePool.get(HTML_NS, "div");
+	private static final QName SPAN = QNamePool.get(HTML_NS, "span");
+	private static final Map<QName,String> LINK_ATTRS = ImmutableMap.of(QNamePool.get("rel"), "stylesheet",
+	                                                                    QNamePool.get("type"), "text/css");
+	private static final QName HREF = QNamePool.get("href");
+	private static final QName STYLE = QNamePool.get("style");
+	private static final QName CLASS = QNamePool.get("class");
 
 	public static void render(XMLStreamWriter writer, Box box, boolean preserveStyle) {
 		try {
@@ -137,10 +137,10 @@ public class Renderer {
 	}
 
 	private static String serializeCascadedProperties(Style style) {
-		if (style == null || style.cascaded == null)
+		if (style == null)
 			return null;
 		String s = Joiner.on("; ").join(ImmutableSortedSet.orderedBy(propertySorter)
-		                                                  .addAll(style.cascaded.values())
+		                                                  .addAll(style.cascaded())
 		                                                  .build());
 		return !s.isEmpty() ? s : null;
 	}
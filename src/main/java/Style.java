@@ -1,7 +1,12 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
 
 import cz.vutbr.web.css.CSSFactory;
 import cz.vutbr.web.css.CSSProperty;
@@ -16,75 +21,225 @@ import cz.vutbr.web.css.Term;
 public class Style {
 
 	final static SupportedCSS supportedCss = CSSFactory.getSupportedCSS();
-	private final static Map<String,Property<CSSProperty>> initialValues = new HashMap<>();
-	private final static Map<String,Boolean> inherited = new HashMap<>();
-	private final static Map<String,Class<? extends CSSProperty>> propertyClasses = new HashMap<>();
-	final static List<Property<CSSProperty>> BLOCK = new ArrayList<>();
-	final static NodeData INLINE = null;
+
+	// every supported property is assigned a dense ID, in alphabetical order
+	final static int PROPERTY_COUNT;
+	private final static String[] propertyNames;
+	private final static Map<String,Integer> propertyIds = new HashMap<>();
+	private final static Property<CSSProperty>[] initialValues;
+	private final static boolean[] inherited;
+	private final static Class<? extends CSSProperty>[] propertyClasses;
 	static {
-		for (String propName : supportedCss.getDefinedPropertyNames()) {
+		propertyNames = supportedCss.getDefinedPropertyNames().toArray(new String[0]);
+		Arrays.sort(propertyNames);
+		PROPERTY_COUNT = propertyNames.length;
+		for (int i = 0; i < PROPERTY_COUNT; i++)
+			propertyIds.put(propertyNames[i], i);
+		@SuppressWarnings("unchecked")
+		Property<CSSProperty>[] values = (Property<CSSProperty>[])new Property<?>[PROPERTY_COUNT];
+		@SuppressWarnings("unchecked")
+		Class<? extends CSSProperty>[] classes = (Class<? extends CSSProperty>[])new Class<?>[PROPERTY_COUNT];
+		initialValues = values;
+		propertyClasses = classes;
+		inherited = new boolean[PROPERTY_COUNT];
+		for (int i = 0; i < PROPERTY_COUNT; i++) {
+			String propName = propertyNames[i];
 			CSSProperty defaultProp = supportedCss.getDefaultProperty(propName);
-			initialValues.put(propName,
-			                  new Property<CSSProperty>(propName,
-			                                            defaultProp,
-			                                            supportedCss.getDefaultValue(propName)));
-			inherited.put(propName, defaultProp.inherited());
-			propertyClasses.put(propName, defaultProp.getClass());
+			initialValues[i] = Property.<CSSProperty>of(propName,
+			                                             defaultProp,
+			                                             supportedCss.getDefaultValue(propName));
+			inherited[i] = defaultProp.inherited();
+			propertyClasses[i] = defaultProp.getClass();
 		}
-		BLOCK.add(new Property<CSSProperty>("display", Display.BLOCK, null));
+	}
+
+	static int id(String property) {
+		Integer id = propertyIds.get(property);
+		if (id == null)
+			throw new IllegalArgumentException("unsupported property: " + property);
+		return id;
+	}
+
+	static String name(int id) {
+		return propertyNames[id];
 	}
 
 	private static <P extends Enum<P> & CSSProperty> Property<P> INHERIT(String property, Class<P> propertyClass) {
-		return new Property<P>(property, Enum.<P>valueOf(propertyClass, "INHERIT"), null);
+		return Property.<P>of(property, Enum.<P>valueOf(propertyClass, "INHERIT"), null);
 	}
 
 	private static <P extends Enum<P> & CSSProperty> Property<P> INITIAL(String property, Class<P> propertyClass) {
-		return new Property<P>(property, Enum.<P>valueOf(propertyClass, "INITIAL"), null);
+		return Property.<P>of(property, Enum.<P>valueOf(propertyClass, "INITIAL"), null);
 	}
 
-	final Map<String,Property<CSSProperty>> cascaded;
+	private final static int WORDS = (PROPERTY_COUNT + 63) / 64;
+	private final static long[] NO_IDS = new long[WORDS];
+	@SuppressWarnings("unchecked")
+	private final static Property<CSSProperty>[] NO_VALUES = (Property<CSSProperty>[])new Property<?>[0];
+
+	// bit i of cascadedIds is set if the property with ID i has a cascaded value
+	// cascadedValues contains the cascaded values in order of ID
+	private final long[] cascadedIds;
+	private final Property<CSSProperty>[] cascadedValues;
 	private final Style inheritFrom;
 
-	Style(NodeData cascaded, Style inheritFrom) {
-		if (cascaded != null) {
-			this.cascaded = new HashMap<>();
-			for (String p : cascaded.getPropertyNames())
-				this.cascaded.put(p, new Property<CSSProperty>(p,
-				                                               cascaded.getProperty(p, false),
-				                                               cascaded.getValue(p, false)));
-		} else
-			this.cascaded = null;
+	// cascaded values of anonymous block boxes, shared by all of them
+	private final static long[] ANONYMOUS_BLOCK_IDS = new long[WORDS];
+	@SuppressWarnings("unchecked")
+	private final static Property<CSSProperty>[] ANONYMOUS_BLOCK_VALUES = (Property<CSSProperty>[])new Property<?>[]{
+		Property.<CSSProperty>of("display", Display.BLOCK, null)
+	};
+	static {
+		for (Property<CSSProperty> p : ANONYMOUS_BLOCK_VALUES)
+			ANONYMOUS_BLOCK_IDS[p.id >> 6] |= 1L << p.id;
+	}
+
+	static Style anonymousBlock(Style inheritFrom) {
+		return new Style(ANONYMOUS_BLOCK_IDS, ANONYMOUS_BLOCK_VALUES, inheritFrom);
+	}
+
+	// anonymous inline boxes have no cascaded values
+	static Style anonymousInline(Style inheritFrom) {
+		return new Style(NO_IDS, NO_VALUES, inheritFrom);
+	}
+
+	private Style(long[] cascadedIds, Property<CSSProperty>[] cascadedValues, Style inheritFrom) {
+		this.cascadedIds = cascadedIds;
+		this.cascadedValues = cascadedValues;
 		this.inheritFrom = inheritFrom;
 	}
 
+	Style(NodeData cascaded, Style inheritFrom) {
+		this(cascadedProperties(cascaded), inheritFrom);
+	}
+
 	Style(Iterable<Property<CSSProperty>> cascaded, Style inheritFrom) {
-		if (cascaded != null) {
-			this.cascaded = new HashMap<>();
+		this(sortedById(cascaded), inheritFrom);
+	}
+
+	// cascaded must be sorted by ID
+	private Style(Property<CSSProperty>[] cascaded, Style inheritFrom) {
+		if (cascaded.length == 0) {
+			this.cascadedIds = NO_IDS;
+			this.cascadedValues = NO_VALUES;
+		} else {
+			this.cascadedIds = new long[WORDS];
 			for (Property<CSSProperty> p : cascaded)
-				this.cascaded.put(p.name, p);
-		} else
-			this.cascaded = null;
+				this.cascadedIds[p.id >> 6] |= 1L << p.id;
+			this.cascadedValues = cascaded;
+		}
 		this.inheritFrom = inheritFrom;
 	}
 
+	private static Property<CSSProperty>[] cascadedProperties(NodeData cascaded) {
+		if (cascaded == null)
+			return NO_VALUES;
+		List<Property<CSSProperty>> properties = new ArrayList<>();
+		for (String p : cascaded.getPropertyNames())
+			if (propertyIds.containsKey(p)) // should always be the case
+				properties.add(Property.<CSSProperty>of(p,
+				                                         cascaded.getProperty(p, false),
+				                                         cascaded.getValue(p, false)));
+		return sortedById(properties);
+	}
+
+	private static Property<CSSProperty>[] sortedById(Iterable<Property<CSSProperty>> properties) {
+		if (properties == null)
+			return NO_VALUES;
+		List<Property<CSSProperty>> list = new ArrayList<>();
+		for (Property<CSSProperty> p : properties)
+			list.add(p);
+		if (list.isEmpty())
+			return NO_VALUES;
+		list.sort((a, b) -> a.id - b.id);
+		return list.toArray(NO_VALUES);
+	}
+
 	protected Style(Style style) {
-		this.cascaded = style.cascaded;
+		this.cascadedIds = style.cascadedIds;
+		this.cascadedValues = style.cascadedValues;
 		this.inheritFrom = style.inheritFrom;
+		this.inheritedValues = style.inheritedValues;
+	}
+
+	// the cascaded values, in order of ID
+	List<Property<CSSProperty>> cascaded() {
+		return Collections.unmodifiableList(Arrays.asList(cascadedValues));
+	}
+
+	private Property<CSSProperty> cascaded(int id) {
+		int word = id >> 6;
+		long bit = 1L << id;
+		if ((cascadedIds[word] & bit) == 0)
+			return null;
+		int index = Long.bitCount(cascadedIds[word] & (bit - 1));
+		for (int i = 0; i < word; i++)
+			index += Long.bitCount(cascadedIds[i]);
+		return cascadedValues[index];
+	}
+
+	// bit i is set if the property with ID i has a cascaded value in this style or in any of the
+	// styles it inherits from; for all other properties getProperty() returns a dummy property
+	// computed lazily, shared with the parent style when no bits are added
+	private volatile long[] cascadedIdsInChain = null;
+
+	long[] cascadedIdsInChain() {
+		long[] ids = cascadedIdsInChain;
+		if (ids == null) {
+			if (inheritFrom == null)
+				ids = cascadedIds;
+			else {
+				long[] parentIds = inheritFrom.cascadedIdsInChain();
+				ids = parentIds;
+				for (int i = 0; i < WORDS; i++)
+					if ((cascadedIds[i] & ~parentIds[i]) != 0) {
+						ids = new long[WORDS];
+						for (int j = 0; j < WORDS; j++)
+							ids[j] = cascadedIds[j] | parentIds[j];
+						break;
+					}
+			}
+			cascadedIdsInChain = ids;
+		}
+		return ids;
+	}
+
+	// styles that inherit from this style, by cascaded values
+	private Map<List<Property<CSSProperty>>,Style> children = null;
+
+	// returns a style with the given cascaded properties that inherits from this style
+	// elements with the same parent style and the same cascaded properties (typically runs of
+	// siblings) share the same (immutable) style object
+	synchronized Style child(NodeData cascaded) {
+		Property<CSSProperty>[] values = cascadedProperties(cascaded);
+		List<Property<CSSProperty>> key = Arrays.asList(values);
+		if (children == null)
+			children = new HashMap<>();
+		Style child = children.get(key);
+		if (child == null) {
+			child = new Style(values, this);
+			children.put(key, child);
+		}
+		return child;
 	}
 
 	protected Property<CSSProperty> getSpecifiedProperty(String property) {
+		return getSpecifiedProperty(id(property));
+	}
+
+	protected Property<CSSProperty> getSpecifiedProperty(int property) {
 		Property<CSSProperty> p = getProperty(property, true, true);
 		if (p == Property.DUMMY_INHERIT || p == Property.DUMMY_INITIAL)
 			throw new RuntimeException("coding error");
 		return p;
 	}
 
-	protected <P extends Enum<P> & CSSProperty> Property<P> getSpecifiedProperty(String property, Class<P> propertyClass) {
-		Property<CSSProperty> p = getProperty(property, propertyClass, true, true);
+	protected <P extends Enum<P> & CSSProperty> Property<P> getSpecifiedProperty(int property, Class<P> propertyClass) {
+		Property<CSSProperty> p = getProperty(property, true, true);
 		if (p == Property.DUMMY_INHERIT)
-			return INHERIT(property, propertyClass);
+			return INHERIT(name(property), propertyClass);
 		else if (p == Property.DUMMY_INITIAL)
-			return INITIAL(property, propertyClass);
+			return INITIAL(name(property), propertyClass);
 		else
 			return Property.<P>cast(p, propertyClass);
 	}
@@ -93,51 +248,147 @@ public class Style {
 	protected Property<CSSProperty> getProperty(String property,
 	                                            boolean concretizeInherit,
 	                                            boolean concretizeInitial) {
-		Class<? extends CSSProperty> propertyClass = propertyClasses.get(property);
-		if (propertyClass == null)
-			throw new IllegalArgumentException("unsupported property: " + property);
-		return getProperty(property, propertyClass, concretizeInherit, concretizeInitial);
+		return getProperty(id(property), concretizeInherit, concretizeInitial);
 	}
 
-	private Property<CSSProperty> getProperty(String property,
-	                                          Class<? extends CSSProperty> propertyClass,
-	                                          boolean concretizeInherit,
-	                                          boolean concretizeInitial) {
-		Property<CSSProperty> p = cascaded != null ? cascaded.get(property) : null;
-		boolean equalsInherit = false;
-		boolean equalsInitial = false;
+	protected Property<CSSProperty> getProperty(int property,
+	                                            boolean concretizeInherit,
+	                                            boolean concretizeInitial) {
+		Property<CSSProperty> p;
+		if (concretizeInherit) {
+			p = resolved(property);
+			if (concretizeInitial
+			    && (p == Property.DUMMY_INHERIT || p == Property.DUMMY_INITIAL || p.prop.equalsInitial()))
+				return initialValues[property];
+			return p;
+		}
+		p = cascaded(property);
 		if (p == null) {
-			if (inherited.get(property))
-				equalsInherit = true;
+			if (inherited[property])
+				return Property.DUMMY_INHERIT;
+			else if (concretizeInitial)
+				return initialValues[property];
 			else
-				equalsInitial = true;
+				return Property.DUMMY_INITIAL;
+		} else if (concretizeInitial && p.prop.equalsInitial())
+			return initialValues[property];
+		else
+			return p;
+	}
+
+	// the value of a property with 'inherit' concretized but not 'initial'
+	private Property<CSSProperty> resolved(int property) {
+		Property<CSSProperty> p = cascaded(property);
+		if (p != null && !p.prop.equalsInherit())
+			return p;
+		if (inherited[property])
+			return inheritedValue(property);
+		else if (p == null || inheritFrom == null)
+			return Property.DUMMY_INITIAL;
+		else
+			// explicit 'inherit' of a property that is not inherited by default: this is rare
+			return inheritFrom.resolved(property);
+	}
+
+	// Resolved values of the inherited properties, in chunks that are shared with the parent style
+	// when this style does not cascade any of the properties in the chunk, so that lookups do not
+	// depend on the nesting depth. The vector is computed when it is first needed.
+	private final static int CHUNK_SHIFT = 4;
+	private final static int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private final static int[] inheritedIndex = new int[PROPERTY_COUNT]; // -1 if not inherited
+	private final static Property<CSSProperty>[] ROOT_CHUNK;
+	private final static int CHUNK_COUNT;
+	static {
+		int n = 0;
+		for (int i = 0; i < PROPERTY_COUNT; i++)
+			inheritedIndex[i] = inherited[i] ? n++ : -1;
+		CHUNK_COUNT = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		@SuppressWarnings("unchecked")
+		Property<CSSProperty>[] chunk = (Property<CSSProperty>[])new Property<?>[CHUNK_SIZE];
+		Arrays.fill(chunk, Property.DUMMY_INHERIT);
+		ROOT_CHUNK = chunk;
+	}
+
+	private static class InheritedValues {
+		final Property<CSSProperty>[][] chunks;
+		InheritedValues(Property<CSSProperty>[][] chunks) {
+			this.chunks = chunks;
 		}
-		if ((equalsInherit || p != null && p.prop.equalsInherit()) && concretizeInherit) {
+	}
+
+	// not volatile: the final field of InheritedValues guarantees that other threads see the
+	// arrays completely, or compute them again
+	private InheritedValues inheritedValues = null;
+
+	private Property<CSSProperty> inheritedValue(int property) {
+		int i = inheritedIndex[property];
+		return inheritedValues().chunks[i >> CHUNK_SHIFT][i & (CHUNK_SIZE - 1)];
+	}
+
+	private InheritedValues inheritedValues() {
+		InheritedValues values = inheritedValues;
+		if (values == null) {
+			@SuppressWarnings("unchecked")
+			Property<CSSProperty>[][] chunks = (Property<CSSProperty>[][])new Property<?>[CHUNK_COUNT][];
 			if (inheritFrom != null)
-				return inheritFrom.getProperty(property, propertyClass, concretizeInherit, concretizeInitial);
+				System.arraycopy(inheritFrom.inheritedValues().chunks, 0, chunks, 0, CHUNK_COUNT);
 			else
-				equalsInitial = true;
+				Arrays.fill(chunks, ROOT_CHUNK);
+			boolean[] copied = new boolean[CHUNK_COUNT];
+			for (Property<CSSProperty> p : cascadedValues) {
+				int i = inheritedIndex[p.id];
+				if (i < 0)
+					continue;
+				int c = i >> CHUNK_SHIFT;
+				if (!copied[c]) {
+					chunks[c] = chunks[c].clone();
+					copied[c] = true;
+				}
+				if (!p.prop.equalsInherit())
+					chunks[c][i & (CHUNK_SIZE - 1)] = p;
+				else if (inheritFrom == null)
+					chunks[c][i & (CHUNK_SIZE - 1)] = Property.DUMMY_INITIAL;
+				// else keep the parent's value
+			}
+			values = new InheritedValues(chunks);
+			inheritedValues = values;
 		}
-		if ((equalsInitial || p.prop.equalsInitial()) && concretizeInitial)
-			return initialValues.get(property);
-		if (equalsInherit)
-			return Property.DUMMY_INHERIT;
-		else if (equalsInitial)
-			return Property.DUMMY_INITIAL;
-		else
-			return p;
+		return values;
 	}
 
+	// Properties are interned: as long as a property is in use, all equal properties are the
+	// same object. This makes equals() a reference comparison. The dummy properties are not
+	// interned.
 	protected static class Property<P extends CSSProperty> {
-		private final static Property<CSSProperty> DUMMY_INHERIT = new Property<>("dummy", DummyCSSProperty.INHERIT, null);
-		private final static Property<CSSProperty> DUMMY_INITIAL = new Property<>("dummy", DummyCSSProperty.INHERIT, null);
+		private final static ConcurrentMap<String,Property<?>> interned = new MapMaker().weakValues().makeMap();
+		private final static Property<CSSProperty> DUMMY_INHERIT = new Property<>("dummy", DummyCSSProperty.INHERIT, null, "dummy: INHERIT");
+		private final static Property<CSSProperty> DUMMY_INITIAL = new Property<>("dummy", DummyCSSProperty.INHERIT, null, "dummy: INHERIT");
 		final String name;
+		final int id; // -1 for dummy properties
 		final P prop;
 		final Term<?> val;
-		Property(String name, P prop, Term<?> val) {
+		private final String string;
+		private final int hash;
+		private Property(String name, P prop, Term<?> val, String string) {
 			this.name = name;
+			Integer id = propertyIds.get(name);
+			this.id = id != null ? id : -1;
 			this.prop = prop;
 			this.val = val;
+			this.string = string;
+			this.hash = string.hashCode();
+		}
+		@SuppressWarnings("unchecked")
+		static <P extends CSSProperty> Property<P> of(String name, P prop, Term<?> val) {
+			String string = name + ": " + (val != null ? val : prop);
+			Property<?> p = interned.get(string);
+			if (p == null) {
+				p = new Property<P>(name, prop, val, string);
+				Property<?> q = interned.putIfAbsent(string, p);
+				if (q != null)
+					p = q;
+			}
+			return (Property<P>)p;
 		}
 		@SuppressWarnings("unchecked")
 		static <P extends CSSProperty> Property<P> cast(Property<? extends CSSProperty> property, Class<P> clazz) {
@@ -145,21 +396,18 @@ public class Style {
 		}
 		@Override
 		public String toString() {
-			return name + ": " + (val != null ? val : prop);
+			return string;
 		}
 		@Override
 		public int hashCode() {
-			return toString().hashCode();
+			return hash;
 		}
 		@Override
 		public boolean equals(Object o) {
 			if (this == o)
 				return true;
-			if (o == null)
-				return false;
-			if (getClass() != o.getClass())
-				return false;
-			return toString().equals(o.toString());
+			// the two dummy properties are equal to each other
+			return id == -1 && o instanceof Property && ((Property<?>)o).id == -1;
 		}
 	}
 
@@ -0,0 +1,133 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import cz.vutbr.web.css.CSSException;
+import cz.vutbr.web.css.CSSFactory;
+import cz.vutbr.web.css.NetworkProcessor;
+import cz.vutbr.web.css.StyleSheet;
+
+/**
+ * Parsed author style sheets, keyed by URL and content, so that a style sheet that is linked
+ * from many documents is parsed only once. A parsed style sheet includes the style sheets it
+ * imports, so these are fetched again on every lookup, and the cached style sheet is only used if
+ * they have not changed either. The least recently used style sheet is evicted when the cache is
+ * full. Thread-safe.
+ */
+public class StyleSheetCache {
+
+	private final Map<String,Entry> cache;
+	private long hits = 0;
+	private long misses = 0;
+
+	public StyleSheetCache(int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException();
+		cache = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+					return size() > maxSize;
+				}
+			};
+	}
+
+	// returns null if the style sheet could not be fetched or parsed
+	// the returned style sheet must not be modified
+	StyleSheet get(URL url, NetworkProcessor network) {
+		byte[] content = fetch(url, network);
+		if (content == null)
+			return null;
+		String key = url.toString() + "#" + hash(content);
+		Entry entry;
+		synchronized (this) {
+			entry = cache.get(key);
+		}
+		if (entry != null && entry.importsUnchanged(network)) {
+			synchronized (this) {
+				hits++;
+			}
+			return entry.stylesheet;
+		}
+		// the imported style sheets (also indirectly imported ones) with the hashes of their content
+		Map<String,String> imports = new HashMap<>();
+		StyleSheet stylesheet;
+		try {
+			// fetch imported style sheets through the network processor, but don't fetch the
+			// style sheet itself again
+			stylesheet = CSSFactory.parse(
+				url,
+				u -> {
+					if (u.toString().equals(url.toString()))
+						return new ByteArrayInputStream(content);
+					byte[] imported = fetch(u, network);
+					imports.put(u.toString(), imported != null ? hash(imported) : null);
+					if (imported == null)
+						throw new IOException("could not fetch " + u);
+					return new ByteArrayInputStream(imported);
+				},
+				null);
+		} catch (IOException e) {
+			return null;
+		} catch (CSSException e) {
+			return null;
+		}
+		synchronized (this) {
+			misses++;
+			cache.put(key, new Entry(stylesheet, imports));
+		}
+		return stylesheet;
+	}
+
+	private static class Entry {
+
+		final StyleSheet stylesheet;
+		final Map<String,String> imports;
+
+		Entry(StyleSheet stylesheet, Map<String,String> imports) {
+			this.stylesheet = stylesheet;
+			this.imports = imports;
+		}
+
+		boolean importsUnchanged(NetworkProcessor network) {
+			for (Map.Entry<String,String> i : imports.entrySet()) {
+				byte[] content;
+				try {
+					content = fetch(new URL(i.getKey()), network);
+				} catch (IOException e) {
+					return false;
+				}
+				String hash = content != null ? hash(content) : null;
+				if (hash == null ? i.getValue() != null : !hash.equals(i.getValue()))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	// returns null if the resource could not be fetched
+	private static byte[] fetch(URL url, NetworkProcessor network) {
+		try (InputStream is = network.fetch(url)) {
+			return ByteStreams.toByteArray(is);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String hash(byte[] content) {
+		return Hashing.sha256().hashBytes(content).toString();
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+}
@@ -0,0 +1,86 @@
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import cz.vutbr.web.css.CSSFactory;
+import cz.vutbr.web.css.CombinedSelector;
+import cz.vutbr.web.css.RuleBlock;
+import cz.vutbr.web.css.RuleSet;
+import cz.vutbr.web.css.Selector;
+import cz.vutbr.web.css.StyleSheet;
+
+/**
+ * Removes the rules from a style sheet that can not match any element of a document.
+ *
+ * A selector can only match if every element name, class and ID it mentions, in any of its
+ * compound selectors, occurs somewhere in the document. The remaining rules are kept in the same
+ * order, so the cascade yields the same result with less selector matching.
+ */
+class StyleSheetPruner {
+
+	private static final Pattern WHITE_SPACE = Pattern.compile("\\s+");
+
+	// names, classes and IDs are compared case-insensitively, which may keep more rules than
+	// needed but never fewer
+	private final Set<String> names = new HashSet<>();
+	private final Set<String> classes = new HashSet<>();
+	private final Set<String> ids = new HashSet<>();
+
+	private StyleSheetPruner(org.w3c.dom.Document doc) {
+		collect(doc);
+	}
+
+	static StyleSheet prune(StyleSheet stylesheet, org.w3c.dom.Document doc) {
+		StyleSheetPruner pruner = new StyleSheetPruner(doc);
+		StyleSheet pruned = (StyleSheet)CSSFactory.getRuleFactory().createStyleSheet().unlock();
+		for (RuleBlock<?> rule : stylesheet)
+			if (!(rule instanceof RuleSet) || pruner.mayMatch((RuleSet)rule))
+				pruned.add(rule);
+		return pruned;
+	}
+
+	private void collect(org.w3c.dom.Node node) {
+		for (org.w3c.dom.Node n = node.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (!(n instanceof org.w3c.dom.Element))
+				continue;
+			org.w3c.dom.Element e = (org.w3c.dom.Element)n;
+			// a type selector without namespace prefix matches the local name in any namespace, so the
+			// prefix of the element name does not matter
+			names.add((e.getLocalName() != null ? e.getLocalName() : e.getNodeName()).toLowerCase());
+			String id = e.getAttribute("id");
+			if (!id.isEmpty())
+				ids.add(id.toLowerCase());
+			String classAttr = e.getAttribute("class");
+			if (!classAttr.isEmpty())
+				for (String c : WHITE_SPACE.split(classAttr.trim().toLowerCase()))
+					classes.add(c);
+			collect(e);
+		}
+	}
+
+	private boolean mayMatch(RuleSet rule) {
+		for (CombinedSelector s : rule.getSelectors())
+			if (mayMatch(s))
+				return true;
+		return false;
+	}
+
+	private boolean mayMatch(CombinedSelector selector) {
+		for (Selector s : selector)
+			for (Selector.SelectorPart p : s)
+				if (p instanceof Selector.ElementName) {
+					String name = ((Selector.ElementName)p).getName();
+					if (name != null && !Selector.ElementName.WILDCARD.equals(name) && !names.contains(name.toLowerCase()))
+						return false;
+				} else if (p instanceof Selector.ElementClass) {
+					String c = ((Selector.ElementClass)p).getClassName();
+					if (c != null && !classes.contains(c.toLowerCase()))
+						return false;
+				} else if (p instanceof Selector.ElementID) {
+					String id = ((Selector.ElementID)p).getID();
+					if (id != null && !ids.contains(id.toLowerCase()))
+						return false;
+				}
+		return true;
+	}
+}
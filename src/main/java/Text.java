@@ -2,14 +2,21 @@ public class Text implements Node {
 
 	private final String text;
 
-	Text(org.w3c.dom.Text node) {
-		text = node.getNodeValue();
+	Text(String text) {
+		this.text = text;
 	}
 
 	public String characters() {
 		return text;
 	}
 
+	private Boolean whiteSpaceOnly = null;
+	boolean isWhiteSpaceOnly() {
+		if (whiteSpaceOnly == null)
+			whiteSpaceOnly = Element.isWhiteSpaceOnly(text);
+		return whiteSpaceOnly;
+	}
+
 	@Override
 	public String toString() {
 		return text;
@@ -7,6 +7,8 @@ import javax.xml.namespace.QName;
 
 import com.google.common.collect.ImmutableMap;
 
+import cz.vutbr.web.css.CSSProperty.Display;
+
 public class Transformer {
 
 	private BoxTreeWalker doc;
@@ -69,6 +71,7 @@ public class Transformer {
 		return this;
 	}
 
+	// listAttributes may be null, but must not contain null names or values
 	public Transformer convertToList(QName listElement,
 	                                 Map<QName,String> listAttributes,
 	                                 QName listItemElement) throws CanNotPerformTransformationException {
@@ -144,29 +147,29 @@ public class Transformer {
 	private static final String HTML_NS = "http://www.w3.org/1999/xhtml";
 	private static final String EPUB_NS = "http://www.idpf.org/2007/ops";
 
-	private static final QName DIV = new QName(HTML_NS, "div");
-	private static final QName P = new QName(HTML_NS, "p");
-	private static final QName SPAN = new QName(HTML_NS, "span");
-	private static final QName STRONG = new QName(HTML_NS, "strong");
-	private static final QName EM = new QName(HTML_NS, "em");
-	private static final QName SMALL = new QName(HTML_NS, "small");
-	private static final QName IMG = new QName(HTML_NS, "img");
-	private static final QName LI = new QName(HTML_NS, "li");
-	private static final QName UL = new QName(HTML_NS, "ul");
-	private static final QName OL = new QName(HTML_NS, "ol");
-	private static final QName A = new QName(HTML_NS, "a");
-	private static final QName HREF = new QName("href");
-	private static final QName FIGURE = new QName(HTML_NS, "figure");
-	private static final QName FIGCAPTION = new QName(HTML_NS, "figcaption");
-	private static final QName H1 = new QName(HTML_NS, "h1");
-	private static final QName H2 = new QName(HTML_NS, "h2");
-	private static final QName H3 = new QName(HTML_NS, "h3");
-	private static final QName H4 = new QName(HTML_NS, "h4");
-	private static final QName H5 = new QName(HTML_NS, "h5");
-	private static final QName H6 = new QName(HTML_NS, "h6");
-
-	private static final Map<QName,String> EPUB_TYPE_Z3998_POEM = ImmutableMap.of(new QName(EPUB_NS, "type"), "z3998:poem");
-	private static final Map<QName,String> EPUB_TYPE_PAGEBREAK = ImmutableMap.of(new QName(EPUB_NS, "type"), "pagebreak");
+	private static final QName DIV = QNamePool.get(HTML_NS, "div");
+	private static final QName P = QNamePool.get(HTML_NS, "p");
+	private static final QName SPAN = QNamePool.get(HTML_NS, "span");
+	private static final QName STRONG = QNamePool.get(HTML_NS, "strong");
+	private static final QName EM = QNamePool.get(HTML_NS, "em");
+	private static final QName SMALL = QNamePool.get(HTML_NS, "small");
+	private static final QName IMG = QNamePool.get(HTML_NS, "img");
+	private static final QName LI = QNamePool.get(HTML_NS, "li");
+	private static final QName UL = QNamePool.get(HTML_NS, "ul");
+	private static final QName OL = QNamePool.get(HTML_NS, "ol");
+	private static final QName A = QNamePool.get(HTML_NS, "a");
+	private static final QName HREF = QNamePool.get("href");
+	private static final QName FIGURE = QNamePool.get(HTML_NS, "figure");
+	private static final QName FIGCAPTION = QNamePool.get(HTML_NS, "figcaption");
+	private static final QName H1 = QNamePool.get(HTML_NS, "h1");
+	private static final QName H2 = QNamePool.get(HTML_NS, "h2");
+	private static final QName H3 = QNamePool.get(HTML_NS, "h3");
+	private static final QName H4 = QNamePool.get(HTML_NS, "h4");
+	private static final QName H5 = QNamePool.get(HTML_NS, "h5");
+	private static final QName H6 = QNamePool.get(HTML_NS, "h6");
+
+	private static final Map<QName,String> EPUB_TYPE_Z3998_POEM = ImmutableMap.of(QNamePool.get(EPUB_NS, "type"), "z3998:poem");
+	private static final Map<QName,String> EPUB_TYPE_PAGEBREAK = ImmutableMap.of(QNamePool.get(EPUB_NS, "type"), "pagebreak");
 
 	/*
 	 * @param blockCount number of blocks in table (one or more)
@@ -178,10 +181,10 @@ public class Transformer {
 		// find and rename first cell
 		while (true) {
 			assertThat(!doc.previousSibling().isPresent());
-			if (doc.current().props.display().equals("table-cell"))
+			if (doc.current().display() == Display.TABLE_CELL)
 				break;
 			else {
-				assertThat(!doc.current().props.display().equals("block"));
+				assertThat(doc.current().display() != Display.BLOCK);
 				assertThat(doc.parent().isPresent());
 			}
 		}
@@ -190,12 +193,12 @@ public class Transformer {
 		assertThat(!doc.previousSibling().isPresent());
 		//  rename other cells in this row
 		while (doc.nextSibling().isPresent()) {
-			assertThat(doc.current().props.display().equals("table-cell"));
+			assertThat(doc.current().display() == Display.TABLE_CELL);
 			doc.renameCurrent(DIV);
 		}
 		// rename row
 		assertThat(doc.parent().isPresent());
-		assertThat(doc.current().props.display().equals("table-row"));
+		assertThat(doc.current().display() == Display.TABLE_ROW);
 		doc.renameCurrent(DIV);
 		// check that this is the first row in the table (or tbody)
 		assertThat(!doc.previousSibling().isPresent());
@@ -204,25 +207,25 @@ public class Transformer {
 		else
 			// process other rows
 			while (doc.nextSibling().isPresent()) {
-				assertThat(doc.current().props.display().equals("table-row"));
+				assertThat(doc.current().display() == Display.TABLE_ROW);
 				doc.renameCurrent(DIV);
 				assertThat(doc.firstChild().isPresent());
 				doc.renameCurrent(DIV);
 				while (doc.nextSibling().isPresent()) {
-					assertThat(doc.current().props.display().equals("table-cell"));
+					assertThat(doc.current().display() == Display.TABLE_CELL);
 					doc.renameCurrent(DIV);
 				}
 				doc.parent();
 			}
 		assertThat(doc.parent().isPresent());
 		// find table
-		if (doc.current().props.display().equals("table-row-group")) {
+		if (doc.current().display() == Display.TABLE_ROW_GROUP) {
 			// check that there is only one tbody and no thead or tfoot
 			assertThat(!doc.nextSibling().isPresent());
 			assertThat(!doc.previousSibling().isPresent());
 			assertThat(doc.parent().isPresent());
 		}
-		assertThat(doc.current().props.display().equals("table"));
+		assertThat(doc.current().display() == Display.TABLE);
 		// check number of cells in table
 		assertThat(count(doc, Box::isBlockAndHasNoBlockChildren) == blockCount);
 		// unwrap table
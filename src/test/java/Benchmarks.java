@@ -0,0 +1,390 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.dom.DocumentOverNodeInfo;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.tree.iter.AxisIterator;
+
+import org.junit.Test;
+
+/**
+ * Timing runs, excluded from the default test run. Run them with mvn test -Dtest=Benchmarks.
+ */
+public class Benchmarks {
+
+	@Test
+	public void reuseParser() throws IOException {
+		URL html = Benchmarks.class.getResource("test.xhtml");
+		int n = 20;
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			new Parser().parse(new StreamSource(html.openStream(), html.toString())).root().getBox();
+		long withoutReuse = System.nanoTime() - start;
+		Parser parser = new Parser();
+		start = System.nanoTime();
+		for (int i = 0; i < n; i++)
+			parser.parse(new StreamSource(html.openStream(), html.toString())).root().getBox();
+		long withReuse = System.nanoTime() - start;
+		System.out.println(String.format("documents/second: %.1f (new parser per document), %.1f (reused parser)",
+		                                 n * 1e9 / withoutReuse, n * 1e9 / withReuse));
+	}
+
+	@Test
+	public void parseAll() throws IOException {
+		URL html = Benchmarks.class.getResource("test.xhtml");
+		Parser parser = new Parser();
+		int cores = Runtime.getRuntime().availableProcessors();
+		int n = 10 * cores;
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			List<StreamSource> documents = new ArrayList<>();
+			for (int i = 0; i < n; i++)
+				documents.add(new StreamSource(html.openStream(), html.toString()));
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			long start = System.nanoTime();
+			for (CompletableFuture<Document> doc : parser.parseAll(documents, executor))
+				doc.join().root().getBox();
+			long time = System.nanoTime() - start;
+			executor.shutdown();
+			System.out.println(String.format("documents/second with %d threads: %.1f", threads, n * 1e9 / time));
+		}
+	}
+
+	@Test
+	public void lazyCascade() {
+		for (boolean lazy : new boolean[]{false, true}) {
+			Parser parser = new Parser().withLazyCascade(lazy);
+			parser.parse(utils.generateDocument(200, 100)); // warm up
+			long start = System.nanoTime();
+			Document doc = parser.parse(utils.generateDocument(200, 100));
+			new BoxTreeWalker(doc.root().getBox()).firstDescendant(Box::isBlockAndHasNoBlockChildren);
+			System.out.println(String.format("time to first block (%s cascade): %.1f ms",
+			                                 lazy ? "lazy" : "eager", (System.nanoTime() - start) / 1e6));
+		}
+	}
+
+	@Test
+	public void styleSharing() throws IOException {
+		URL html = Benchmarks.class.getResource("test2.xhtml");
+		Document doc = new Parser().parse(new StreamSource(html.openStream(), html.toString()));
+		List<Element> elements = new ArrayList<>();
+		utils.elements(doc.root(), elements);
+		Set<Style> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+		long bytes = 0;
+		long sharedBytes = 0;
+		for (Element e : elements) {
+			Style style = e.style();
+			// rough size of a style object with its arrays of cascaded properties
+			int n = style.cascaded().size();
+			long size = 32 + (n > 0 ? 40 + 16 + 4 * n : 0);
+			bytes += size;
+			if (distinct.add(style))
+				sharedBytes += size;
+		}
+		System.out.println(String.format("%d elements share %d styles (sharing ratio %.2f), about %d kB of %d kB saved",
+		                                 elements.size(), distinct.size(), 1 - (double)distinct.size() / elements.size(),
+		                                 (bytes - sharedBytes) / 1024, bytes / 1024));
+	}
+
+	@Test
+	public void usedValuesDeepNesting() {
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><style>html { background-color: yellow }</style></head><body>");
+		for (int i = 0; i < 200; i++)
+			html.append("<div>");
+		for (int i = 0; i < 200; i++)
+			html.append("<p>paragraph <span>" + i + "</span></p>");
+		for (int i = 0; i < 200; i++)
+			html.append("</div>");
+		html.append("</body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()),
+		                                                   Benchmarks.class.getResource("test.xhtml").toString()));
+		List<Box> boxes = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), boxes);
+		for (int round = 1; round <= 2; round++) {
+			long start = System.nanoTime();
+			for (Box b : boxes) {
+				b.props().backgroundColor();
+				b.props().visibility();
+			}
+			System.out.println(String.format("used values of %d boxes nested 200 deep (%s): %.1f ms",
+			                                 boxes.size(), round == 1 ? "first access" : "memoized",
+			                                 (System.nanoTime() - start) / 1e6));
+		}
+	}
+
+	@Test
+	public void renderPreservingStyle() throws XMLStreamException {
+		Document doc = new Parser().parse(utils.generateDocument(100, 100));
+		for (int round = 1; round <= 2; round++) {
+			long start = System.nanoTime();
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter());
+			Renderer.render(writer, doc.root().getBox(), true);
+			writer.close();
+			System.out.println(String.format("rendering with preserved style (round %d): %.1f ms",
+			                                 round, (System.nanoTime() - start) / 1e6));
+		}
+	}
+
+	@Test
+	public void inheritanceDeepNesting() {
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head>");
+		html.append("<style>body { color: red; font-style: italic } div { margin-left: 1px }</style></head><body>");
+		for (int i = 0; i < 200; i++)
+			html.append("<div>");
+		for (int i = 0; i < 200; i++)
+			html.append("<p>paragraph <span>" + i + "</span></p>");
+		for (int i = 0; i < 200; i++)
+			html.append("</div>");
+		html.append("</body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()),
+		                                                   Benchmarks.class.getResource("test.xhtml").toString()));
+		List<Element> elements = new ArrayList<>();
+		utils.elements(doc.root(), elements);
+		long start = System.nanoTime();
+		for (Element e : elements)
+			for (int p = 0; p < Style.PROPERTY_COUNT; p++)
+				e.style().getSpecifiedProperty(p);
+		System.out.println(String.format("all properties of %d elements nested 200 deep: %.1f ms",
+		                                 elements.size(), (System.nanoTime() - start) / 1e6));
+	}
+
+	@Test
+	public void transformAllocation() throws IOException, XMLStreamException, CanNotPerformTransformationException {
+		String HTML_NS = "http://www.w3.org/1999/xhtml";
+		URL html = Benchmarks.class.getResource("test2.xhtml");
+		Document doc = Parser.parse(html.openStream(), html);
+		long before = allocatedBytes();
+		Box transformed = new Transformer(doc.root().getBox())
+				.moveTo(0, 1)    .markupHeading(new QName(HTML_NS, "h1"))
+				.moveTo(0, 0, 1) .removeImage()
+				.moveTo(1, 150)  .transformTable(false)
+				                 .convertToList(new QName(HTML_NS, "ol"), null, new QName(HTML_NS, "li"))
+				                 .transformNavList()
+				.moveTo(0, 151)  .wrapList(1, new QName(HTML_NS, "nav"))
+				.get();
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter());
+		Renderer.render(writer, transformed, true);
+		writer.close();
+		long after = allocatedBytes();
+		if (before >= 0 && after >= 0)
+			System.out.println(String.format("allocated during transformation and rendering: %d kB", (after - before) / 1024));
+	}
+
+	// bytes allocated by the current thread so far, or -1 if the JVM can not tell
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	@Test
+	public void flatBoxTree() throws XMLStreamException {
+		Parser parser = new Parser();
+		for (int round = 1; round <= 2; round++)
+			for (boolean flat : new boolean[]{false, true}) {
+				Document doc = parser.parse(utils.generateDocument(100, 100));
+				long bytes = allocatedBytes();
+				long start = System.nanoTime();
+				Box root = flat ? FlatBoxTree.of(doc.root()).root() : doc.root().getBox();
+				XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter());
+				Renderer.render(writer, root, true);
+				writer.close();
+				long time = System.nanoTime() - start;
+				bytes = bytes >= 0 ? allocatedBytes() - bytes : -1;
+				System.out.println(String.format("%s box tree, built and rendered (round %d): %.1f ms%s",
+				                                 flat ? "flat" : "lazy", round, time / 1e6,
+				                                 bytes >= 0 ? String.format(" (%d kB allocated)", bytes / 1024) : ""));
+			}
+	}
+
+	@Test
+	public void fullTreeTraversal() throws IOException {
+		URL html = Benchmarks.class.getResource("test2.xhtml");
+		Parser parser = new Parser();
+		for (int round = 1; round <= 3; round++) {
+			Document doc = parser.parse(new StreamSource(html.openStream(), html.toString()));
+			long start = System.nanoTime();
+			List<Box> boxes = new ArrayList<>();
+			utils.boxes(doc.root().getBox(), boxes);
+			System.out.println(String.format("full traversal of %d boxes (round %d): %.1f ms",
+			                                 boxes.size(), round, (System.nanoTime() - start) / 1e6));
+		}
+	}
+
+	@Test
+	public void attributeLookup() {
+		URL base = Benchmarks.class.getResource("test.xhtml");
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body><div>");
+		for (int i = 0; i < 5000; i++) {
+			html.append("<a href=\"#n" + i + "\" id=\"a" + i + "\" class=\"c\" title=\"t\" lang=\"en\"");
+			for (int j = 0; j < 10; j++)
+				html.append(" data-x" + j + "=\"" + j + "\"");
+			html.append(">" + i + "</a> ");
+		}
+		html.append("</div></body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		List<Box> boxes = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), boxes);
+		QName href = new QName("href");
+		for (int round = 1; round <= 2; round++) {
+			long start = System.nanoTime();
+			int found = 0;
+			for (int i = 0; i < 10; i++)
+				for (Box b : boxes)
+					if (b.getAttributes().containsKey(href) && b.getAttributes().get(href).startsWith("#"))
+						found++;
+			System.out.println(String.format("attribute lookups in %d boxes (round %d): %.1f ms (%d found)",
+			                                 boxes.size(), round, (System.nanoTime() - start) / 1e6, found));
+		}
+	}
+
+	@Test
+	public void namePool() {
+		URL base = Benchmarks.class.getResource("test.xhtml");
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body>");
+		for (int i = 0; i < 20000; i++)
+			html.append("<p class=\"c\" id=\"p" + i + "\">paragraph <em title=\"t\">" + i + "</em></p>");
+		html.append("</body></html>");
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		System.gc();
+		System.out.println(String.format("heap after parsing %d paragraphs: %d kB",
+		                                 20000, (runtime.totalMemory() - runtime.freeMemory() - heap) / 1024));
+		doc.root(); // keeps the document reachable until after the measurement
+	}
+
+	@Test
+	public void detach() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+		Document doc = new Parser().parse(utils.generateDocument(100, 100));
+		List<Box> boxes = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), boxes);
+		boxes = null;
+		System.gc();
+		long attached = runtime.totalMemory() - runtime.freeMemory() - heap;
+		doc.detach();
+		System.gc();
+		long detached = runtime.totalMemory() - runtime.freeMemory() - heap;
+		System.out.println(String.format("retained heap of a materialized document: %d kB (attached), %d kB (detached)",
+		                                 attached / 1024, detached / 1024));
+		doc.root(); // keeps the document reachable until after the measurement
+	}
+
+	@Test
+	public void parseAndBuildBoxTree() throws IOException {
+		URL html = Benchmarks.class.getResource("test2.xhtml");
+		Parser parser = new Parser();
+		int n = 20;
+		for (int round = 1; round <= 2; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < n; i++) {
+				Document doc = parser.parse(new StreamSource(html.openStream(), html.toString()));
+				utils.boxes(doc.root().getBox(), new ArrayList<>());
+			}
+			System.out.println(String.format("parse and build box tree (round %d): %.1f ms per document",
+			                                 round, (System.nanoTime() - start) / 1e6 / n));
+		}
+	}
+
+	// navigating Saxon's tree directly compared to navigating its DOM view, as the element tree did
+	// before
+	@Test
+	public void domViewNavigation() throws SaxonApiException {
+		NodeInfo tree = new Processor(false).newDocumentBuilder().build(utils.generateDocument(200, 100)).getUnderlyingNode();
+		org.w3c.dom.Document dom = (org.w3c.dom.Document)DocumentOverNodeInfo.wrap(tree);
+		for (int round = 1; round <= 2; round++) {
+			long start = System.nanoTime();
+			int nodes = countNodes(dom.getDocumentElement());
+			long viaDOM = System.nanoTime() - start;
+			start = System.nanoTime();
+			int nodes2 = countNodes(tree);
+			long direct = System.nanoTime() - start;
+			System.out.println(String.format("navigating %d nodes (round %d): %.1f ms (DOM view), %.1f ms (%d nodes, Saxon tree)",
+			                                 nodes, round, viaDOM / 1e6, direct / 1e6, nodes2));
+		}
+	}
+
+	private static int countNodes(org.w3c.dom.Node node) {
+		int n = 1;
+		org.w3c.dom.NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++)
+			n += countNodes(children.item(i));
+		org.w3c.dom.NamedNodeMap attrs = node.getAttributes();
+		if (attrs != null)
+			for (int i = 0; i < attrs.getLength(); i++)
+				n += attrs.item(i).getNodeValue() != null ? 1 : 0;
+		return n;
+	}
+
+	private static int countNodes(NodeInfo node) {
+		int n = 1;
+		AxisIterator children = node.iterateAxis(AxisInfo.CHILD);
+		NodeInfo child;
+		while ((child = children.next()) != null)
+			n += countNodes(child);
+		AxisIterator attrs = node.iterateAxis(AxisInfo.ATTRIBUTE);
+		NodeInfo attr;
+		while ((attr = attrs.next()) != null)
+			n += attr.getStringValue() != null ? 1 : 0;
+		return n;
+	}
+
+	@Test
+	public void wideTreeNavigation() {
+		URL base = Benchmarks.class.getResource("test.xhtml");
+		int siblings = 10000;
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body><div>");
+		for (int i = 0; i < siblings; i++)
+			html.append("<p>" + i + "</p>");
+		html.append("</div></body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		BoxTreeWalker walker = new BoxTreeWalker(doc.root().getBox());
+		walker.firstDescendant(b -> b.getName() != null && b.getName().getLocalPart().equals("div"));
+		for (int round = 1; round <= 5; round++) {
+			long start = System.nanoTime();
+			walker.firstChild();
+			do {
+				walker.firstChild();
+				walker.parent();
+			} while (walker.nextSibling().isPresent());
+			while (walker.previousSibling().isPresent());
+			walker.parent();
+			BoxTreeWalker clone = walker.clone();
+			clone.firstChild();
+			for (int i = 1; i < siblings; i++)
+				clone.firstFollowing();
+			System.out.println(String.format("navigating %d siblings (round %d): %.1f ms",
+			                                 siblings, round, (System.nanoTime() - start) / 1e6));
+		}
+	}
+}
@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoxTest {
+
+	@Test
+	public void testConcurrentReaders() throws Exception {
+		URL html = BoxTest.class.getResource("test2.xhtml");
+		String expected; {
+			Document doc = Parser.parse(html.openStream(), html);
+			expected = utils.toJSON(doc.root().getBox());
+		}
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 20; round++) {
+				// all threads materialize the same lazy document at the same time
+				Document doc = Parser.parse(html.openStream(), html);
+				List<Callable<String>> tasks = new ArrayList<>();
+				for (int i = 0; i < threads; i++)
+					tasks.add(() -> utils.toJSON(doc.root().getBox()));
+				for (Future<String> result : executor.invokeAll(tasks))
+					Assert.assertEquals(expected, result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -1,13 +1,17 @@
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URL;
+import java.util.Collections;
 import java.util.Optional;
 import java.util.function.Predicate;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.s9api.SaxonApiException;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 public class BoxTreeWalkerTest {
@@ -55,4 +59,82 @@ public class BoxTreeWalkerTest {
 		else if (walker.parent().isPresent())
 			walker.unwrapFirstChild();
 	}
+
+	@Test(expected=IllegalArgumentException.class) // attributes can not have a null value
+	public void testNullAttributeValue() throws XMLStreamException, IOException, SaxonApiException, InterruptedException {
+		URL html = BoxTreeWalkerTest.class.getResource("test.xhtml");
+		Document doc = Parser.parse(html.openStream(), html);
+		BoxTreeWalker walker = new BoxTreeWalker(doc.root().getBox());
+		walker.firstDescendant(Box::isBlockAndHasNoBlockChildren);
+		walker.renameCurrent(new QName("BLOCK"), Collections.singletonMap(new QName("class"), null));
+	}
+
+	// wrapping inline boxes used to fail with a NullPointerException
+	@Test
+	public void testWrapInline() throws IOException {
+		URL html = BoxTreeWalkerTest.class.getResource("test.xhtml");
+		Document doc = Parser.parse(html.openStream(), html);
+		BoxTreeWalker walker = new BoxTreeWalker(doc.root().getBox());
+		Assert.assertTrue(
+			walker.firstDescendant(b -> b.getName() != null && b.getName().getLocalPart().equals("strong")).isPresent());
+		Box strong = walker.current();
+		Assert.assertSame(strong, walker.wrapCurrent(new QName("WRAPPER")));
+		Box wrapper = walker.parent().get();
+		Assert.assertTrue(wrapper instanceof Box.InlineBox);
+		Assert.assertEquals("WRAPPER", wrapper.getName().getLocalPart());
+		ListIterator<Box> children = wrapper.children();
+		Assert.assertSame(strong, children.next());
+		Assert.assertFalse(children.hasNext());
+		walker.wrapChildren(null);
+		Box anonymous = walker.firstChild().get();
+		Assert.assertTrue(anonymous instanceof Box.AnonymousInlineBox);
+		Assert.assertSame(strong, anonymous.children().next());
+	}
+
+	@Test
+	public void testWideTreeNavigation() {
+		URL base = BoxTreeWalkerTest.class.getResource("test.xhtml");
+		int siblings = 200;
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body><div>");
+		for (int i = 0; i < siblings; i++)
+			html.append("<p>" + i + "</p>");
+		html.append("</div></body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		BoxTreeWalker walker = new BoxTreeWalker(doc.root().getBox());
+		Predicate<Box> isDiv = b -> b.getName() != null && b.getName().getLocalPart().equals("div");
+		Assert.assertTrue(walker.firstDescendant(isDiv).isPresent());
+		for (int round = 1; round <= 2; round++) {
+			int n = 0;
+			walker.firstChild();
+			do {
+				// down into the text and back up
+				Assert.assertEquals("" + n, walker.firstChild().get().text);
+				walker.parent();
+				Assert.assertEquals("p", walker.current().getName().getLocalPart());
+				n++;
+			} while (walker.nextSibling().isPresent());
+			Assert.assertEquals(siblings, n);
+			while (walker.previousSibling().isPresent())
+				n--;
+			Assert.assertEquals(1, n);
+			walker.parent();
+			Assert.assertTrue(isDiv.test(walker.current()));
+			// the last paragraph through the following axis
+			BoxTreeWalker clone = walker.clone();
+			clone.firstChild();
+			for (int i = 1; i < siblings; i++)
+				clone.firstFollowing();
+			Assert.assertFalse(clone.nextSibling().isPresent());
+			Assert.assertEquals("" + (siblings - 1), clone.firstChild().get().text);
+		}
+		// path update
+		walker.firstChild();
+		while (walker.nextSibling().isPresent());
+		walker.renameCurrent(new QName("LAST"));
+		Assert.assertEquals("LAST", walker.current().getName().getLocalPart());
+		walker.root();
+		Assert.assertTrue(walker.firstDescendant(b -> b.getName() != null && b.getName().getLocalPart().equals("LAST")).isPresent());
+		Assert.assertFalse(walker.nextSibling().isPresent());
+	}
 }
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FlatBoxTreeTest {
+
+	// the flat tree is built from a document of which the lazy box tree was never built
+	@Test
+	public void testSameAsLazyTree() throws IOException, XMLStreamException {
+		Parser parser = new Parser();
+		for (String f : new String[]{"test.xhtml", "test2.xhtml"}) {
+			URL html = FlatBoxTreeTest.class.getResource(f);
+			Box lazy = parser.parse(new StreamSource(html.openStream(), html.toString())).root().getBox();
+			Box flat = FlatBoxTree.of(parser.parse(new StreamSource(html.openStream(), html.toString())).root()).root();
+			Assert.assertEquals(utils.toJSON(lazy), utils.toJSON(flat));
+			Assert.assertEquals(render(lazy), render(flat));
+		}
+		Assert.assertEquals(utils.toJSON(parser.parse(utils.generateDocument(2, 3)).root().getBox()),
+		                    utils.toJSON(FlatBoxTree.of(parser.parse(utils.generateDocument(2, 3)).root()).root()));
+	}
+
+	@Test
+	public void testIndexes() throws IOException {
+		URL html = FlatBoxTreeTest.class.getResource("test2.xhtml");
+		FlatBoxTree tree = FlatBoxTree.of(new Parser().parse(new StreamSource(html.openStream(), html.toString())).root());
+		List<Box> boxes = new ArrayList<>();
+		utils.boxes(tree.root(), boxes);
+		Assert.assertEquals(boxes.size(), tree.size());
+		Assert.assertEquals(-1, tree.parent(0));
+		for (int i = 0; i < tree.size(); i++) {
+			Box box = tree.box(i);
+			Assert.assertEquals(box.getName(), tree.getName(i));
+			Assert.assertEquals(box instanceof Box.BlockBox, tree.isBlock(i));
+			int child = tree.firstChild(i);
+			for (Box c : box) {
+				Assert.assertSame(c, tree.box(child));
+				Assert.assertEquals(i, tree.parent(child));
+				child = tree.nextSibling(child);
+			}
+			Assert.assertEquals(-1, child);
+		}
+	}
+
+	@Test
+	public void testWalkFlatTree() throws IOException {
+		URL html = FlatBoxTreeTest.class.getResource("test.xhtml");
+		FlatBoxTree tree = FlatBoxTree.of(new Parser().parse(new StreamSource(html.openStream(), html.toString())).root());
+		BoxTreeWalker walker = new BoxTreeWalker(tree.root());
+		int n = 1;
+		while (walker.firstDescendant(b -> true).isPresent() || walker.firstFollowing(b -> true).isPresent())
+			n++;
+		Assert.assertEquals(tree.size(), n);
+		// the children are read by index
+		walker.root();
+		walker.firstChild();
+		while (walker.nextSibling().isPresent());
+		Assert.assertSame(tree.box(tree.firstChild(0) + countChildren(tree.root()) - 1), walker.current());
+	}
+
+	private static int countChildren(Box box) {
+		int n = 0;
+		for (Box c : box)
+			n++;
+		return n;
+	}
+
+	private static String render(Box root) throws XMLStreamException {
+		StringWriter s = new StringWriter();
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(s);
+		Renderer.render(writer, root, true);
+		writer.close();
+		return s.toString();
+	}
+}
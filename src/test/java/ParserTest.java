@@ -1,3 +1,34 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.stream.StreamSource;
+
+import cz.vutbr.web.css.CSSProperty;
+import net.sf.saxon.dom.DocumentOverNodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+
+import org.junit.Assert;
 import org.junit.Test;
 
 public class ParserTest {
@@ -8,5 +39,493 @@ public class ParserTest {
 		
 		
 		
+	}
+
+	@Test
+	public void testReuseParser() throws IOException {
+		Parser parser = new Parser();
+		for (String f : new String[]{"test.xhtml", "test2.xhtml", "test.xhtml"}) {
+			URL html = ParserTest.class.getResource(f);
+			Assert.assertEquals(
+				utils.toJSON(new Parser().parse(new StreamSource(html.openStream(), html.toString())).root().getBox()),
+				utils.toJSON(parser.parse(new StreamSource(html.openStream(), html.toString())).root().getBox()));
+		}
+	}
+
+	@Test
+	public void testParseAll() throws IOException {
+		// the documents alternate, so that results of concurrent parses that get mixed up would differ
+		URL[] html = {ParserTest.class.getResource("test.xhtml"), ParserTest.class.getResource("test2.xhtml")};
+		Parser parser = new Parser();
+		String[] expected = new String[html.length];
+		for (int i = 0; i < html.length; i++)
+			expected[i] = utils.toJSON(parser.parse(new StreamSource(html[i].openStream(), html[i].toString())).root().getBox());
+		int n = 16;
+		List<StreamSource> documents = new ArrayList<>();
+		for (int i = 0; i < n; i++)
+			documents.add(new StreamSource(html[i % html.length].openStream(), html[i % html.length].toString()));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<CompletableFuture<Document>> futures = parser.parseAll(documents, executor);
+			for (int i = 0; i < n; i++)
+				Assert.assertEquals(expected[i % html.length], utils.toJSON(futures.get(i).join().root().getBox()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testStyleSheetCache() throws IOException {
+		StyleSheetCache cache = new StyleSheetCache(10);
+		Parser parser = new Parser().withStyleSheetCache(cache);
+		for (String f : new String[]{"test.xhtml", "test2.xhtml", "test.xhtml"}) {
+			URL html = ParserTest.class.getResource(f);
+			parser.parse(new StreamSource(html.openStream(), html.toString()));
+		}
+		Assert.assertEquals(1, cache.misses());
+		Assert.assertEquals(2, cache.hits());
+	}
+
+	@Test
+	public void testStyleSheetCacheImports() throws IOException {
+		URL base = new URL("http://example.org/book/");
+		URL html = new URL(base, "chapter.xhtml");
+		byte[] doc = ("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head>"
+		              + "<link rel=\"stylesheet\" type=\"text/css\" href=\"main.css\"/></head>"
+		              + "<body><p>paragraph</p></body></html>").getBytes("UTF-8");
+		InMemoryNetworkProcessor network = new InMemoryNetworkProcessor()
+			.put(html, doc)
+			.put(new URL(base, "main.css"), "@import url(imported.css);".getBytes("UTF-8"))
+			.put(new URL(base, "imported.css"), "p { color: red }".getBytes("UTF-8"));
+		StyleSheetCache cache = new StyleSheetCache(10);
+		Parser parser = new Parser().withNetworkProcessor(network).withStyleSheetCache(cache);
+		String red = utils.toJSON(parser.parse(new StreamSource(network.fetch(html), html.toString())).root().getBox());
+		Assert.assertEquals(red, utils.toJSON(parser.parse(new StreamSource(network.fetch(html), html.toString())).root().getBox()));
+		Assert.assertEquals(1, cache.hits());
+		// the imported style sheet changes, but the style sheet that imports it does not
+		network.put(new URL(base, "imported.css"), "p { color: blue }".getBytes("UTF-8"));
+		String blue = utils.toJSON(parser.parse(new StreamSource(network.fetch(html), html.toString())).root().getBox());
+		Assert.assertNotEquals(red, blue);
+		Assert.assertEquals(blue, utils.toJSON(new Parser().withNetworkProcessor(network).withStyleSheetCache(null)
+		                                                   .parse(new StreamSource(network.fetch(html), html.toString()))
+		                                                   .root().getBox()));
+		Assert.assertEquals(1, cache.hits());
+		Assert.assertEquals(2, cache.misses());
+	}
+
+	// the linked style sheets are found when the elements have a namespace prefix
+	@Test
+	public void testStyleSheetCachePrefixedNames() throws IOException {
+		URL html = new URL("http://example.org/book/chapter.xhtml");
+		byte[] doc = ("<h:html xmlns:h=\"http://www.w3.org/1999/xhtml\"><h:head>"
+		              + "<h:link rel=\"stylesheet\" type=\"text/css\" href=\"main.css\"/></h:head>"
+		              + "<h:body><h:p>paragraph</h:p></h:body></h:html>").getBytes("UTF-8");
+		InMemoryNetworkProcessor network = new InMemoryNetworkProcessor()
+			.put(html, doc)
+			.put(new URL(html, "main.css"), "p { color: red }".getBytes("UTF-8"));
+		StyleSheetCache cache = new StyleSheetCache(10);
+		Parser parser = new Parser().withNetworkProcessor(network).withStyleSheetCache(cache);
+		String json = utils.toJSON(parser.parse(new StreamSource(network.fetch(html), html.toString())).root().getBox());
+		Assert.assertEquals(1, cache.misses());
+		Assert.assertEquals(json, utils.toJSON(parser.parse(new StreamSource(network.fetch(html), html.toString())).root().getBox()));
+		Assert.assertEquals(1, cache.hits());
+	}
+
+	@Test
+	public void testInMemoryNetworkProcessor() throws IOException, URISyntaxException {
+		File resources = new File(ParserTest.class.getResource("test.xhtml").toURI()).getParentFile();
+		URL base = new URL("http://example.org/book/");
+		InMemoryNetworkProcessor network = new InMemoryNetworkProcessor().putDirectory(resources, base);
+		StyleSheetCache cache = new StyleSheetCache(10);
+		Parser parser = new Parser().withNetworkProcessor(network).withStyleSheetCache(cache);
+		URL html = new URL(base, "test.xhtml");
+		Assert.assertNotNull(parser.parse(new StreamSource(network.fetch(html), html.toString())).root().getBox());
+		// the linked style sheet was served from memory
+		Assert.assertEquals(1, cache.misses());
+	}
+
+	@Test
+	public void testLazyCascade() throws IOException {
+		for (String f : new String[]{"test.xhtml", "test2.xhtml"}) {
+			URL html = ParserTest.class.getResource(f);
+			Assert.assertEquals(
+				utils.toJSON(new Parser().withLazyCascade(false).parse(new StreamSource(html.openStream(), html.toString())).root().getBox()),
+				utils.toJSON(new Parser().withLazyCascade(true).parse(new StreamSource(html.openStream(), html.toString())).root().getBox()));
+		}
+		Assert.assertEquals(
+			utils.toJSON(new Parser().withLazyCascade(false).parse(utils.generateDocument(2, 3)).root().getBox()),
+			utils.toJSON(new Parser().withLazyCascade(true).parse(utils.generateDocument(2, 3)).root().getBox()));
+	}
+
+	@Test
+	public void testStyleSheetPruning() throws IOException {
+		for (String f : new String[]{"test.xhtml", "test2.xhtml"}) {
+			URL html = ParserTest.class.getResource(f);
+			List<Object> expected = cascadedStyles(
+				new Parser().withStyleSheetPruning(false).parse(new StreamSource(html.openStream(), html.toString())));
+			Assert.assertEquals(
+				expected,
+				cascadedStyles(
+					new Parser().withStyleSheetPruning(true).parse(new StreamSource(html.openStream(), html.toString()))));
+			Assert.assertEquals(
+				expected,
+				cascadedStyles(
+					new Parser().withStyleSheetPruning(true).withLazyCascade(true)
+					            .parse(new StreamSource(html.openStream(), html.toString()))));
+		}
+	}
+
+	// element names with a namespace prefix
+	@Test
+	public void testStyleSheetPruningPrefixedNames() {
+		String html = "<h:html xmlns:h=\"http://www.w3.org/1999/xhtml\"><h:head/><h:body>"
+			+ "<h:div class=\"c\"><h:p>text <h:em>emphasized</h:em></h:p><h:ul><h:li>item</h:li></h:ul></h:div>"
+			+ "</h:body></h:html>";
+		List<Object> expected = cascadedStyles(
+			new Parser().withStyleSheetPruning(false).parse(new StreamSource(new StringReader(html), "http://example.org/doc.xhtml")));
+		Assert.assertEquals(
+			expected,
+			cascadedStyles(
+				new Parser().withStyleSheetPruning(true).parse(new StreamSource(new StringReader(html), "http://example.org/doc.xhtml"))));
+	}
+
+	@Test
+	public void testStyleSharing() throws IOException {
+		URL html = ParserTest.class.getResource("test2.xhtml");
+		Document doc = new Parser().parse(new StreamSource(html.openStream(), html.toString()));
+		List<Element> elements = new ArrayList<>();
+		utils.elements(doc.root(), elements);
+		Set<Style> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Element e : elements) {
+			distinct.add(e.style());
+			// siblings with the same cascaded properties share the style object
+			Map<List<?>,Style> siblingStyles = new HashMap<>();
+			for (Node n : e.children())
+				if (n instanceof Element) {
+					Style style = ((Element)n).style();
+					Style sibling = siblingStyles.putIfAbsent(style.cascaded(), style);
+					if (sibling != null)
+						Assert.assertSame(sibling, style);
+				}
+		}
+		Assert.assertTrue(distinct.size() < elements.size());
+	}
+
+	@Test
+	public void testUsedValuesDeepNesting() throws IOException {
+		URL base = ParserTest.class.getResource("test.xhtml");
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><style>html { background-color: yellow }</style></head><body>");
+		for (int i = 0; i < 200; i++)
+			html.append("<div>");
+		for (int i = 0; i < 200; i++)
+			html.append("<p>paragraph <span>" + i + "</span></p>");
+		for (int i = 0; i < 200; i++)
+			html.append("</div>");
+		html.append("</body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		List<Box> boxes = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), boxes);
+		String background = doc.root().getBox().props().backgroundColor();
+		Assert.assertNotNull(background);
+		for (int round = 1; round <= 2; round++)
+			// the second time the memoized values are returned
+			for (Box b : boxes) {
+				// the background color is inherited through the transparent boxes
+				Assert.assertEquals(background, b.props().backgroundColor());
+				Assert.assertEquals("visible", b.props().visibility());
+			}
+	}
+
+	@Test
+	public void testInheritanceDeepNesting() throws IOException {
+		URL base = ParserTest.class.getResource("test.xhtml");
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><style>");
+		html.append("body { color: red; font-style: italic } div { margin-left: 1px } ");
+		// explicit 'inherit', of an inherited and of a non-inherited property
+		html.append("span { color: inherit; margin-left: inherit }</style></head><body>");
+		for (int i = 0; i < 50; i++)
+			html.append("<div>");
+		for (int i = 0; i < 50; i++)
+			html.append("<p>paragraph <span>" + i + "</span></p>");
+		for (int i = 0; i < 50; i++)
+			html.append("</div>");
+		html.append("</body></html>");
+		List<Document> docs = new ArrayList<>();
+		docs.add(new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString())));
+		URL test2 = ParserTest.class.getResource("test2.xhtml");
+		docs.add(new Parser().parse(new StreamSource(test2.openStream(), test2.toString())));
+		for (Document doc : docs) {
+			List<Element> elements = new ArrayList<>();
+			utils.elements(doc.root(), elements);
+			for (Element e : elements)
+				for (int p = 0; p < Style.PROPERTY_COUNT; p++) {
+					Assert.assertEquals(inheritFromWalk(e, p, false), e.style().getProperty(p, true, false));
+					Assert.assertEquals(inheritFromWalk(e, p, true), e.style().getProperty(p, true, true));
+				}
+		}
+	}
+
+	private static final Style NO_STYLE = new Style((Iterable<Style.Property<CSSProperty>>)null, null);
+
+	// reference: Style.getProperty() with 'inherit' concretized as it was before the inherited
+	// values were shared, by walking up the ancestors
+	private static Style.Property<CSSProperty> inheritFromWalk(Element e, int p, boolean concretizeInitial) {
+		Style.Property<CSSProperty> cascaded = e.style().getProperty(p, false, false);
+		Style.Property<CSSProperty> dummy = null;
+		if (cascaded.id == -1) {
+			dummy = cascaded;
+			cascaded = null;
+		}
+		Style.Property<CSSProperty> initial = NO_STYLE.getProperty(p, true, true);
+		boolean equalsInherit = cascaded == null && initial.prop.inherited();
+		boolean equalsInitial = cascaded == null && !equalsInherit;
+		if (equalsInherit || cascaded != null && cascaded.prop.equalsInherit()) {
+			if (e.parent != null)
+				return inheritFromWalk(e.parent, p, concretizeInitial);
+			else
+				equalsInitial = true;
+		}
+		if ((equalsInitial || cascaded.prop.equalsInitial()) && concretizeInitial)
+			return initial;
+		if (equalsInherit || equalsInitial)
+			// the two dummy properties are equal to each other
+			return dummy != null ? dummy : NO_STYLE.getProperty(p, false, false);
+		return cascaded;
+	}
+
+	@Test
+	public void testNestedInlineText() throws IOException {
+		URL base = ParserTest.class.getResource("test.xhtml");
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body><p>");
+		for (int i = 0; i < 500; i++)
+			html.append("<span>" + i + " ");
+		for (int i = 0; i < 500; i++)
+			html.append("</span>");
+		html.append("</p></body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		List<Box> boxes = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), boxes);
+		StringBuilder text = new StringBuilder();
+		for (Box b : boxes)
+			if (b.hasText())
+				text.append(((Box.InlineBox)b).text());
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 500; i++)
+			expected.append(i + " ");
+		Assert.assertEquals(expected.toString(), text.toString());
+	}
+
+	@Test
+	public void testParseAndBuildBoxTree() throws IOException, SaxonApiException {
+		Parser parser = new Parser();
+		for (String f : new String[]{"test.xhtml", "test2.xhtml"}) {
+			URL html = ParserTest.class.getResource(f);
+			Document doc = parser.parse(new StreamSource(html.openStream(), html.toString()));
+			// the DOM view of Saxon's tree, which the element tree was built from before
+			org.w3c.dom.Document dom = (org.w3c.dom.Document)DocumentOverNodeInfo.wrap(
+				new Processor(false).newDocumentBuilder()
+					.build(new StreamSource(html.openStream(), html.toString()))
+					.getUnderlyingNode());
+			assertSameAsDOM(dom.getDocumentElement(), doc.root());
+			Assert.assertNotNull(doc.root().getBox());
+		}
+	}
+
+	// compares an element with the element that the old code built from the DOM view
+	private static void assertSameAsDOM(org.w3c.dom.Element expected, Element element) {
+		QName name = element.getName();
+		Assert.assertEquals(expected.getLocalName(), name.getLocalPart());
+		Assert.assertEquals(expected.getNamespaceURI() != null ? expected.getNamespaceURI() : "", name.getNamespaceURI());
+		Assert.assertEquals(expected.getPrefix() != null ? expected.getPrefix() : "", name.getPrefix());
+		Map<QName,String> attributes = new HashMap<>();
+		org.w3c.dom.NamedNodeMap attrs = expected.getAttributes();
+		for (int i = 0; i < attrs.getLength(); i++) {
+			org.w3c.dom.Node attr = attrs.item(i);
+			if ("http://www.w3.org/2000/xmlns/".equals(attr.getNamespaceURI()))
+				continue;
+			String value = attr.getNodeValue();
+			if ("img".equals(name.getLocalPart()) && "src".equals(attr.getLocalName()))
+				value = URI.create(expected.getBaseURI()).resolve(value).toString();
+			attributes.put(new QName(attr.getNamespaceURI() != null ? attr.getNamespaceURI() : "", attr.getLocalName()), value);
+		}
+		Assert.assertEquals(attributes, element.getAttributes());
+		Iterator<Node> children = element.children().iterator();
+		if (!"img".equals(name.getLocalPart())) {
+			org.w3c.dom.NodeList nodes = expected.getChildNodes();
+			for (int i = 0; i < nodes.getLength(); i++) {
+				org.w3c.dom.Node n = nodes.item(i);
+				if (n instanceof org.w3c.dom.Element)
+					assertSameAsDOM((org.w3c.dom.Element)n, (Element)children.next());
+				else if (n instanceof org.w3c.dom.Text)
+					Assert.assertEquals(n.getNodeValue(), ((Text)children.next()).characters());
+			}
+		}
+		Assert.assertFalse(children.hasNext());
+	}
+
+	@Test
+	public void testParseXMLStreamReader() throws IOException, XMLStreamException {
+		URL html = ParserTest.class.getResource("test2.xhtml");
+		Parser parser = new Parser();
+		String expected = utils.toJSON(parser.parse(new StreamSource(html.openStream(), html.toString())).root().getBox());
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		Document doc = parser.parse(factory.createXMLStreamReader(html.openStream()), html);
+		Assert.assertEquals(expected, utils.toJSON(doc.root().getBox()));
+	}
+
+	// the base URL of a reader is set on Saxon's document builder, which needs a valid URI
+	@Test(expected=IllegalArgumentException.class)
+	public void testParseXMLStreamReaderInvalidBase() throws IOException, XMLStreamException {
+		String html = "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body><p>text</p></body></html>";
+		new Parser().parse(XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(html)),
+		                   new URL("file:/tmp/a b/chapter.xhtml"));
+	}
+
+	// a URL with a space is not a valid URI, but can be used as the system ID
+	@Test
+	public void testBaseURLWithSpace() throws IOException {
+		String html = "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body><p>text</p></body></html>";
+		Parser parser = new Parser();
+		Assert.assertEquals(utils.toJSON(parser.parse(new StreamSource(new StringReader(html), "file:/tmp/chapter.xhtml")).root().getBox()),
+		                    utils.toJSON(parser.parse(new StreamSource(new StringReader(html), "file:/tmp/a b/chapter.xhtml")).root().getBox()));
+	}
+
+	@Test
+	public void testFullTreeTraversal() throws IOException {
+		URL html = ParserTest.class.getResource("test2.xhtml");
+		Document doc = new Parser().parse(new StreamSource(html.openStream(), html.toString()));
+		List<Box> first = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), first);
+		// the second traversal returns the memoized boxes
+		List<Box> second = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), second);
+		Assert.assertEquals(first.size(), second.size());
+		for (int i = 0; i < first.size(); i++)
+			Assert.assertSame(first.get(i), second.get(i));
+		// at the end of the children, the iterator keeps saying so
+		ListIterator<Box> children = doc.root().getBox().children();
+		while (children.hasNext())
+			children.next();
+		Assert.assertFalse(children.hasNext());
+		Assert.assertFalse(children.hasNext());
+		try {
+			children.next();
+			Assert.fail("expected NoSuchElementException");
+		} catch (NoSuchElementException e) {
+		}
+	}
+
+	@Test
+	public void testAttributeLookup() throws IOException {
+		URL base = ParserTest.class.getResource("test.xhtml");
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body><div>");
+		for (int i = 0; i < 100; i++) {
+			html.append("<a href=\"#n" + i + "\" id=\"a" + i + "\" class=\"c\" title=\"t\" lang=\"en\"");
+			for (int j = 0; j < 10; j++)
+				html.append(" data-x" + j + "=\"" + j + "\"");
+			html.append(">" + i + "</a> ");
+		}
+		html.append("</div></body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		List<Box> boxes = new ArrayList<>();
+		utils.boxes(doc.root().getBox(), boxes);
+		QName href = new QName("href");
+		QName id = new QName("id");
+		int found = 0;
+		for (Box b : boxes)
+			if (b.getAttributes().containsKey(href)) {
+				Assert.assertEquals(15, b.getAttributes().size());
+				Assert.assertEquals("#n" + found, b.getAttributes().get(href));
+				Assert.assertEquals("a" + found, b.getAttributes().get(id));
+				Assert.assertEquals("9", b.getAttributes().get(new QName("data-x9")));
+				Assert.assertNull(b.getAttributes().get(new QName("data-x10")));
+				found++;
+			}
+		Assert.assertEquals(100, found);
+	}
+
+	@Test
+	public void testNamePool() throws IOException {
+		URL base = ParserTest.class.getResource("test.xhtml");
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body>");
+		for (int i = 0; i < 100; i++)
+			html.append("<p class=\"c\" id=\"p" + i + "\">paragraph <em title=\"t\">" + i + "</em></p>");
+		// the same attribute name with two prefixes
+		for (String prefix : new String[]{"epub", "ops", "epub", "ops"})
+			html.append("<p xmlns:" + prefix + "=\"http://www.idpf.org/2007/ops\" " + prefix + ":type=\"t\">x</p>");
+		html.append("</body></html>");
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html.toString()), base.toString()));
+		List<Element> elements = new ArrayList<>();
+		utils.elements(doc.root(), elements);
+		Set<QName> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Element e : elements) {
+			distinct.add(e.getName());
+			distinct.addAll(e.getAttributes().keySet());
+		}
+		// html, head, body, p, em, class, id, title, epub:type, ops:type
+		Assert.assertEquals(10, distinct.size());
+		Map<String,QName> type = new HashMap<>();
+		for (QName n : distinct)
+			if ("type".equals(n.getLocalPart())) {
+				Assert.assertEquals("http://www.idpf.org/2007/ops", n.getNamespaceURI());
+				type.put(n.getPrefix(), n);
+			}
+		Assert.assertEquals(2, type.size());
+		Assert.assertTrue(type.containsKey("epub") && type.containsKey("ops"));
+		Assert.assertEquals(type.get("epub"), type.get("ops"));
+		Assert.assertSame(type.get("ops"), QNamePool.intern(new QName("http://www.idpf.org/2007/ops", "type", "ops")));
+	}
+
+	@Test
+	public void testImageSourceResolution() throws IOException {
+		String html = "<html xmlns=\"http://www.w3.org/1999/xhtml\"><head/><body>"
+			+ "<p><img src=\"a.png\"/></p>"
+			+ "<div xml:base=\"images/\"><p><img src=\"b.png\"/></p></div>"
+			+ "</body></html>";
+		Document doc = new Parser().parse(new StreamSource(new StringReader(html), "http://example.org/book/chapter.xhtml"));
+		List<Element> elements = new ArrayList<>();
+		utils.elements(doc.root(), elements);
+		List<String> src = new ArrayList<>();
+		for (Element e : elements)
+			if ("img".equals(e.getName().getLocalPart()))
+				src.add(e.getAttributes().get(new QName("src")));
+		Assert.assertEquals(Arrays.asList("http://example.org/book/a.png", "http://example.org/book/images/b.png"), src);
+	}
+
+	@Test
+	public void testDetach() throws IOException {
+		Parser parser = new Parser();
+		String expected = utils.toJSON(parser.parse(utils.generateDocument(3, 5)).root().getBox());
+		// detached before the box tree was built
+		Document doc = parser.parse(utils.generateDocument(3, 5)).detach();
+		Assert.assertEquals(expected, utils.toJSON(doc.root().getBox()));
+		// detached after part of the box tree was built
+		doc = parser.parse(utils.generateDocument(3, 5));
+		new BoxTreeWalker(doc.root().getBox()).firstDescendant(Box::isBlockAndHasNoBlockChildren);
+		doc.detach();
+		Assert.assertEquals(expected, utils.toJSON(doc.root().getBox()));
+		// detaching again does nothing
+		Assert.assertEquals(expected, utils.toJSON(doc.detach().root().getBox()));
+	}
+
+	// cascaded styles of all elements in document order
+	private static List<Object> cascadedStyles(Document doc) {
+		List<Object> styles = new ArrayList<>();
+		cascadedStyles(doc.root(), styles);
+		return styles;
+	}
+
+	private static void cascadedStyles(Element element, List<Object> styles) {
+		styles.add(element.getName());
+		styles.add(element.style().cascaded());
+		for (Node n : element.children())
+			if (n instanceof Element)
+				cascadedStyles((Element)n, styles);
 	}
 }
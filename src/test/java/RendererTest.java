@@ -1,10 +1,20 @@
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
 
+import cz.vutbr.web.css.CSSProperty;
+import cz.vutbr.web.css.CSSProperty.Margin;
+import cz.vutbr.web.css.TermLengthOrPercent;
 import net.sf.saxon.s9api.SaxonApiException;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 public class RendererTest {
@@ -15,4 +25,77 @@ public class RendererTest {
 		Document doc = Parser.parse(html.openStream(), html);
 		utils.render(doc.root().getBox(), true);
 	}
+
+	// the style attributes written with preserveStyle are the same as when all properties are
+	// compared, as before only the cascaded properties were compared
+	@Test
+	public void testRenderPreservingStyle() throws IOException, XMLStreamException {
+		for (String f : new String[]{"test.xhtml", "test2.xhtml"}) {
+			URL html = RendererTest.class.getResource(f);
+			Document doc = new Parser().parse(new StreamSource(html.openStream(), html.toString()));
+			List<Box> ancestors = new ArrayList<>();
+			ancestors.add(null);
+			checkRelativize(doc.root().getBox(), ancestors);
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(new StringWriter());
+			Renderer.render(writer, doc.root().getBox(), true);
+			writer.close();
+		}
+	}
+
+	// the box that is rendered is not the root, so its style is relativized against no box
+	@Test
+	public void testRenderSubtreePreservingStyle() throws IOException, XMLStreamException {
+		URL html = RendererTest.class.getResource("test.xhtml");
+		Document doc = new Parser().parse(new StreamSource(html.openStream(), html.toString()));
+		BoxTreeWalker walker = new BoxTreeWalker(doc.root().getBox());
+		Assert.assertTrue(walker.firstDescendant(b -> b.getName() != null && b.isBlockAndHasNoBlockChildren()).isPresent());
+		Box box = walker.current();
+		BoxPropertiesImpl props = (BoxPropertiesImpl)box.props();
+		Assert.assertEquals(relativizeAllProperties(props, null), props.relativize(null).cascaded());
+		StringWriter s = new StringWriter();
+		XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(s);
+		Renderer.render(writer, box, true);
+		writer.close();
+		Assert.assertTrue(s.toString().contains("<" + box.getName().getLocalPart()));
+	}
+
+	// compares the style of the box relative to no box and relative to each of its ancestors with
+	// the reference (the renderer relativizes the box it is given against no box, and every other
+	// box against its parent in the box tree, also when the parent is skipped or rendered anonymous)
+	private static void checkRelativize(Box box, List<Box> ancestors) {
+		BoxPropertiesImpl props = (BoxPropertiesImpl)box.props();
+		for (Box a : ancestors) {
+			BoxPropertiesImpl base = a != null ? (BoxPropertiesImpl)a.props() : null;
+			Style relative = props.relativize(base);
+			Assert.assertEquals(relative == props ? props.cascaded() : relativizeAllProperties(props, base),
+			                    relative.cascaded());
+		}
+		ancestors.add(box);
+		for (Box child : box)
+			checkRelativize(child, ancestors);
+		ancestors.remove(ancestors.size() - 1);
+	}
+
+	// reference: BoxPropertiesImpl.relativize() as it was before it compared only the properties that
+	// are cascaded in either style
+	private static List<Style.Property<CSSProperty>> relativizeAllProperties(Style style, BoxPropertiesImpl base) {
+		Style ifEmpty = new Style((Iterable<Style.Property<CSSProperty>>)null, base);
+		List<Style.Property<CSSProperty>> relative = new ArrayList<>();
+		for (int p = 0; p < Style.PROPERTY_COUNT; p++) {
+			Style.Property<CSSProperty> a = style.getProperty(p, true, false);
+			Style.Property<CSSProperty> b = ifEmpty.getProperty(p, true, false);
+			if (a.prop.equalsInitial()) {
+				if (!b.prop.equalsInitial())
+					relative.add(style.getSpecifiedProperty(p));
+			} else if (b.prop.equalsInitial())
+				relative.add(a);
+			else if (a.prop instanceof Margin
+			         && a.val != null && ((TermLengthOrPercent)a.val).getValue() == 0f
+			         && b.val != null && ((TermLengthOrPercent)b.val).getValue() == 0f)
+				continue;
+			else if (!a.equals(b))
+				relative.add(a);
+		}
+		return new Style(relative, base).cascaded();
+	}
 }
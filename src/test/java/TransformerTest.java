@@ -6,6 +6,7 @@ import javax.xml.stream.XMLStreamException;
 
 import net.sf.saxon.s9api.SaxonApiException;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 public class TransformerTest {
@@ -53,4 +54,30 @@ public class TransformerTest {
 		
 		utils.render(transformed, false);
 	}
+
+	// anonymous boxes with the same parent share their properties
+	@Test
+	public void testAnonymousBoxPropertiesShared() throws IOException {
+		for (String f : new String[]{"test.xhtml", "test2.xhtml"}) {
+			URL html = BoxTreeWalkerTest.class.getResource(f);
+			checkAnonymousBoxProperties(Parser.parse(html.openStream(), html).root().getBox());
+		}
+	}
+
+	private static void checkAnonymousBoxProperties(Box box) {
+		BoxProperties block = null;
+		BoxProperties inline = null;
+		for (Box child : box) {
+			if (child instanceof Box.AnonymousBlockBox) {
+				if (block != null)
+					Assert.assertSame(block, child.props());
+				block = child.props();
+			} else if (child instanceof Box.AnonymousInlineBox) {
+				if (inline != null)
+					Assert.assertSame(inline, child.props());
+				inline = child.props();
+			}
+			checkAnonymousBoxProperties(child);
+		}
+	}
 }
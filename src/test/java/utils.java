@@ -1,9 +1,13 @@
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.event.StreamWriterToReceiver;
 import net.sf.saxon.s9api.Processor;
@@ -44,4 +48,40 @@ final class utils {
 		writer.close();
 		Runtime.getRuntime().exec("open -a Firefox " + tmpFile.getAbsolutePath()).waitFor();
 	}
+
+	static String toJSON(Box box) throws IOException {
+		StringWriter writer = new StringWriter();
+		Serializer.serializeToJSON(writer, box);
+		return writer.toString();
+	}
+
+	// a document with the given number of sections of paragraphs, styled with stylesheet.css
+	static StreamSource generateDocument(int sections, int paragraphs) {
+		StringBuilder html = new StringBuilder();
+		html.append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head>");
+		html.append("<link rel=\"stylesheet\" type=\"text/css\" href=\"stylesheet.css\"/></head><body>");
+		for (int i = 0; i < sections; i++) {
+			html.append("<div class=\"section\">");
+			for (int j = 0; j < paragraphs; j++)
+				html.append("<p class=\"C318\">paragraph <em>" + i + "</em>.<strong>" + j + "</strong></p>");
+			html.append("</div>");
+		}
+		html.append("</body></html>");
+		return new StreamSource(new StringReader(html.toString()), utils.class.getResource("test.xhtml").toString());
+	}
+
+	// all boxes in document order
+	static void boxes(Box box, List<Box> boxes) {
+		boxes.add(box);
+		for (Box b : box)
+			boxes(b, boxes);
+	}
+
+	// all elements in document order
+	static void elements(Element element, List<Element> elements) {
+		elements.add(element);
+		for (Node n : element.children())
+			if (n instanceof Element)
+				elements((Element)n, elements);
+	}
 }